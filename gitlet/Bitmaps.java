@@ -0,0 +1,330 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import static gitlet.Utils.*;
+
+/** Reachability bitmaps: for selected commits of a pack, the set of
+ *  objects reachable from each, as an Ewah over the positions of objects
+ *  in the pack's index.
+ *
+ *  When a pack is written, bitmaps are computed for every branch head
+ *  and for every commit whose generation is a multiple of SPACING, and
+ *  stored next to the pack as pack-ID.bitmap: the MAGIC int, a VERSION
+ *  int and the pack's object count, then one bitmap per object type
+ *  (commits, trees, blobs), then the number of commits and each one's
+ *  20-byte SHA and bitmap, followed by the number of objects it reaches
+ *  outside the pack, such as blobs packing left loose, and each one's SHA
+ *  and type byte. Files of version 1, which lack that list, are read as
+ *  having none.
+ *
+ *  Finding what a set of commits reaches walks back through the commit
+ *  graph only until it meets a commit with a bitmap, ORs in those
+ *  bitmaps, and then reads just the commits and trees of the part of
+ *  history the bitmaps do not cover, skipping every object already set.
+ *  Objects outside the bitmapped pack, such as loose ones written since,
+ *  are collected by SHA beside the bitmap. The answers are Reach sets,
+ *  which support andNot and counting by type without any further walk.
+ *  With no bitmaps at all the same walk simply covers all of history.
+ *  @author Truong Le
+ */
+class Bitmaps {
+    /** Header of a bitmap file, "BMAP". */
+    private static final int MAGIC = 0x424d4150;
+    /** Version of the bitmap file format. */
+    private static final int VERSION = 2;
+    /** Generations between commits given a bitmap besides branch heads. */
+    static final int SPACING = 100;
+    /** Object types, in the order their bitmaps are stored. */
+    private static final byte[] TYPES =
+        {PackFile.COMMIT, PackFile.TREE, PackFile.BLOB};
+
+    /** The bitmaps returned by current. */
+    private static Bitmaps _current;
+    /** PackFile.all() when _current was loaded. */
+    private static List<PackFile> _loadedFrom;
+
+    /** The pack whose positions the bitmaps use, or null if none. */
+    private final PackFile _pack;
+    /** Objects of each type, by type byte. */
+    private final Map<Byte, Ewah> _types;
+    /** What commits with bitmaps reach, by commit SHA. */
+    private final Map<String, Reach> _commits;
+
+    /** Bitmaps over PACK of objects of each type, TYPES, and of what
+     *  commits reach, COMMITS. */
+    private Bitmaps(PackFile pack, Map<Byte, Ewah> types,
+                    Map<String, Reach> commits) {
+        _pack = pack;
+        _types = types;
+        _commits = commits;
+    }
+
+    /** Return the bitmaps of the first pack that has them, or empty
+     *  bitmaps if none does. */
+    static synchronized Bitmaps current() {
+        List<PackFile> packs = PackFile.all();
+        if (_current == null || _loadedFrom != packs) {
+            HashMap<Byte, Ewah> none = new HashMap<>();
+            for (byte type : TYPES) {
+                none.put(type, Ewah.EMPTY);
+            }
+            _current = new Bitmaps(null, none, new HashMap<>());
+            for (PackFile pack : packs) {
+                if (pack.bitmapFile().isFile()) {
+                    _current = read(pack);
+                    break;
+                }
+            }
+            _loadedFrom = packs;
+        }
+        return _current;
+    }
+
+    /** Return the bitmaps stored for PACK. */
+    private static Bitmaps read(PackFile pack) {
+        File file = pack.bitmapFile();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 Files.newInputStream(file.toPath())))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version < 1 || version > VERSION
+                    || in.readInt() != pack.count()) {
+                throw error("Corrupt bitmap file: %s", file.getName());
+            }
+            HashMap<Byte, Ewah> types = new HashMap<>();
+            for (byte type : TYPES) {
+                types.put(type, Ewah.read(in));
+            }
+            HashMap<String, Reach> commits = new HashMap<>();
+            Bitmaps result = new Bitmaps(pack, types, commits);
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                String sha = readSHA(in);
+                Ewah packed = Ewah.read(in);
+                TreeMap<String, Byte> others = new TreeMap<>();
+                for (int m = version == 1 ? 0 : in.readInt(); m > 0;
+                     m -= 1) {
+                    others.put(readSHA(in), in.readByte());
+                }
+                commits.put(sha, new Reach(result, packed, others));
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Compute and store the bitmaps of PACK, which must hold every
+     *  commit reachable from its commits, for the branch heads HEADS and
+     *  every SPACING-th generation. */
+    static void write(PackFile pack, Collection<String> heads) {
+        HashMap<Byte, BitSet> byType = new HashMap<>();
+        for (byte type : TYPES) {
+            byType.put(type, new BitSet(pack.count()));
+        }
+        List<String> selected = new ArrayList<>();
+        for (int k = 0; k < pack.count(); k += 1) {
+            byte type = pack.type(k);
+            byType.get(type).set(k);
+            if (type == PackFile.COMMIT) {
+                String sha = pack.sha(k);
+                if (heads.contains(sha)
+                        || CommitGraph.generation(sha) % SPACING == 0) {
+                    selected.add(sha);
+                }
+            }
+        }
+        selected.sort((a, b) -> Integer.compare(CommitGraph.generation(a),
+                                                CommitGraph.generation(b)));
+        HashMap<Byte, Ewah> types = new HashMap<>();
+        for (byte type : TYPES) {
+            types.put(type, Ewah.of(byType.get(type)));
+        }
+        Bitmaps bitmaps = new Bitmaps(pack, types, new HashMap<>());
+        for (String sha : selected) {
+            bitmaps._commits.put(sha, bitmaps.reach(List.of(sha),
+                                                    List.of()));
+        }
+
+        File tmp = Durable.temp();
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(
+                     Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pack.count());
+            for (byte type : TYPES) {
+                types.get(type).write(out);
+            }
+            out.writeInt(bitmaps._commits.size());
+            for (Map.Entry<String, Reach> e : bitmaps._commits.entrySet()) {
+                Reach reach = e.getValue();
+                writeSHA(out, e.getKey());
+                reach._packed.write(out);
+                out.writeInt(reach._others.size());
+                for (Map.Entry<String, Byte> other
+                         : reach._others.entrySet()) {
+                    writeSHA(out, other.getKey());
+                    out.writeByte(other.getValue());
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durable.install(tmp, pack.bitmapFile());
+        synchronized (Bitmaps.class) {
+            _current = null;
+        }
+    }
+
+    /** Return the objects reachable from the commits COMMITS, plus the
+     *  blobs BLOBS. */
+    Reach reach(Collection<String> commits, Collection<String> blobs) {
+        Ewah covered = Ewah.EMPTY;
+        TreeMap<String, Byte> unpacked = new TreeMap<>();
+        List<String> walked = new ArrayList<>();
+        HashSet<String> seenCommits = new HashSet<>();
+        ArrayDeque<String> stack = new ArrayDeque<>(commits);
+        while (!stack.isEmpty()) {
+            String sha = stack.pop();
+            if (!seenCommits.add(sha)) {
+                continue;
+            }
+            Reach bitmap = _commits.get(sha);
+            if (bitmap != null) {
+                covered = covered.or(bitmap._packed);
+                unpacked.putAll(bitmap._others);
+                continue;
+            }
+            walked.add(sha);
+            for (String parent : CommitGraph.parents(sha)) {
+                stack.push(parent);
+            }
+        }
+
+        Reach result = new Reach(this, covered.toBitSet());
+        for (Map.Entry<String, Byte> e : unpacked.entrySet()) {
+            result.add(e.getKey(), e.getValue());
+        }
+        for (String sha : blobs) {
+            result.add(sha, PackFile.BLOB);
+        }
+        for (String sha : walked) {
+            if (!result.add(sha, PackFile.COMMIT)) {
+                continue;
+            }
+            stack.push(GitlitController.getCommitInGitDir(sha).getTreeSHA());
+            while (!stack.isEmpty()) {
+                String treeSHA = stack.pop();
+                if (!result.add(treeSHA, PackFile.TREE)) {
+                    continue;
+                }
+                Tree tree = Tree.read(treeSHA);
+                for (String blobSHA : tree.blobSHAs()) {
+                    result.add(blobSHA, PackFile.BLOB);
+                }
+                stack.addAll(tree.subtreeSHAs());
+            }
+        }
+        result.seal();
+        return result;
+    }
+
+    /** A set of objects: those in the bitmapped pack as a bitmap over
+     *  its positions, and any others by SHA. */
+    static class Reach {
+        /** The bitmaps whose pack _packed refers to. */
+        private final Bitmaps _bitmaps;
+        /** Objects in the pack, while the set is being built. */
+        private BitSet _building;
+        /** Objects in the pack, once built. */
+        private Ewah _packed;
+        /** Objects not in the pack. Key: SHA; Val: type byte. */
+        private final TreeMap<String, Byte> _others;
+
+        /** A set being built of the objects of BITMAPS's pack in
+         *  PACKED. */
+        private Reach(Bitmaps bitmaps, BitSet packed) {
+            _bitmaps = bitmaps;
+            _building = packed;
+            _others = new TreeMap<>();
+        }
+
+        /** A set of the objects of BITMAPS's pack in PACKED and the
+         *  objects OTHERS. */
+        private Reach(Bitmaps bitmaps, Ewah packed,
+                      TreeMap<String, Byte> others) {
+            _bitmaps = bitmaps;
+            _packed = packed;
+            _others = others;
+        }
+
+        /** Add object SHA of type TYPE while building, returning false if
+         *  it was already present. */
+        private boolean add(String sha, byte type) {
+            PackFile pack = _bitmaps._pack;
+            int k = pack == null ? -1 : pack.find(sha);
+            if (k < 0) {
+                return _others.put(sha, type) == null;
+            }
+            if (_building.get(k)) {
+                return false;
+            }
+            _building.set(k);
+            return true;
+        }
+
+        /** Finish building. */
+        private void seal() {
+            _packed = Ewah.of(_building);
+            _building = null;
+        }
+
+        /** Return the objects of this set that are not in OTHER, which
+         *  must come from the same bitmaps. */
+        Reach andNot(Reach other) {
+            TreeMap<String, Byte> others = new TreeMap<>(_others);
+            others.keySet().removeAll(other._others.keySet());
+            return new Reach(_bitmaps, _packed.andNot(other._packed),
+                             others);
+        }
+
+        /** Return the number of objects of type TYPE in this set. */
+        int count(byte type) {
+            int result = _packed.and(_bitmaps._types.get(type))
+                .cardinality();
+            for (byte t : _others.values()) {
+                if (t == type) {
+                    result += 1;
+                }
+            }
+            return result;
+        }
+
+        /** Return the SHAs of the objects of type TYPE in this set. */
+        List<String> list(byte type) {
+            List<String> result = new ArrayList<>();
+            _packed.and(_bitmaps._types.get(type))
+                .forEach(k -> result.add(_bitmaps._pack.sha(k)));
+            for (Map.Entry<String, Byte> e : _others.entrySet()) {
+                if (e.getValue() == type) {
+                    result.add(e.getKey());
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** The working-tree changes needed to move from one commit to another.
+ *  Only the paths that differ between the two commits' trees (plus any
+ *  staged paths) are touched: files added or changed in the target are
+ *  written, files it removes are deleted, and everything else is left
+ *  as it is.
+ *  @author Truong Le
+ */
+class CheckoutPlan {
+    /** Files to write. Key: path; Val: blob SHA. */
+    private final TreeMap<String, String> _writes = new TreeMap<>();
+    /** Files to delete. */
+    private final TreeSet<String> _deletes = new TreeSet<>();
+    /** Paths that are not tracked by the commit being left. */
+    private final TreeSet<String> _untrackedBefore = new TreeSet<>();
+
+    /** The plan for checking out TO when the working tree is at FROM,
+     *  with the paths in STAGED also reset to their versions in TO. */
+    CheckoutPlan(Commit from, Commit to, Collection<String> staged) {
+        for (Map.Entry<String, String[]> e
+                 : Tree.diff(from.getTreeSHA(), to.getTreeSHA()).entrySet()) {
+            plan(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+        for (String path : staged) {
+            if (!_writes.containsKey(path) && !_deletes.contains(path)) {
+                plan(path, from.getBlobSHA(path), to.getBlobSHA(path));
+            }
+        }
+    }
+
+    /** Plan moving PATH from blob BEFORE to blob AFTER, either of which
+     *  may be null. */
+    private void plan(String path, String before, String after) {
+        if (after != null) {
+            _writes.put(path, after);
+        } else {
+            _deletes.add(path);
+        }
+        if (before == null) {
+            _untrackedBefore.add(path);
+        }
+    }
+
+    /** Return true, printing the standard message, if executing this plan
+     *  would overwrite a working file that is neither tracked nor in
+     *  STAGEDFORADDITION. */
+    boolean blockedByUntracked(Collection<String> stagedForAddition) {
+        for (String path : _writes.keySet()) {
+            if (_untrackedBefore.contains(path)
+                    && !stagedForAddition.contains(path)
+                    && new File(path).exists()) {
+                System.out.println("There is an untracked file in the way; "
+                        + "delete it, or add and commit it first.");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the files this plan writes. Key: path; Val: blob SHA. */
+    Map<String, String> writes() {
+        return _writes;
+    }
+
+    /** Return the files this plan deletes. */
+    Collection<String> deletes() {
+        return _deletes;
+    }
+
+    /** Carry out this plan on the working tree, writing files in
+     * parallel. Deletions come first so that a file replaced by a
+     * directory of the same name, or the reverse, is out of the way. */
+    void execute() {
+        for (String path : _deletes) {
+            Worktree.delete(path);
+        }
+        Materializer.materialize(_writes);
+    }
+}
@@ -0,0 +1,29 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/** Thin entry point that hands a gitlet command to the repository's
+ *  Daemon and prints what it sends back, exiting with the command's exit
+ *  code. Takes the same arguments as Main. If no daemon is running, the
+ *  command is run in this JVM instead, so scripts may always use it.
+ *  @author Truong Le
+ */
+public class Client {
+    /** Run the command ARGS, through the daemon if there is one. */
+    public static void main(String... args) {
+        SocketChannel daemon = Daemon.connect();
+        if (daemon == null) {
+            Main.main(args);
+            return;
+        }
+        int status;
+        try (daemon) {
+            status = Daemon.request(daemon, args);
+        } catch (IOException excp) {
+            System.err.println("Lost connection to the gitlet daemon.");
+            status = 1;
+        }
+        System.exit(status);
+    }
+}
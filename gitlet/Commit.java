@@ -1,7 +1,11 @@
 package gitlet;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Date;
 import static gitlet.Utils.*;
@@ -12,68 +16,161 @@ import java.text.SimpleDateFormat;
  */
 public class Commit implements Serializable {
     private static final long serialVersionUID = 123L;
+    /** Header of the binary encoding, "GCMT". */
+    private static final int MAGIC = 0x47434d54;
+    /** Version of the binary encoding. */
+    private static final int VERSION = 1;
     /** Commit message. */
     private String _message;
     /** Commit time. */
     private Date _timestamp;
-    /** Commit parent. */
-    private Commit _parent;
-    /** Commit ID: its SHA? */
+    /** SHA of the commit parent, null for the initial commit. */
+    private String _parentSHA;
+    /** Commit ID: SHA-1 of its contents, computed once at creation. */
     private String _commitID;
-    /** Commit blobs: Key: Filename ; Val: SHA. */
-    private HashMap<String, String> _blobsPtr;
-    /** Commit parent1 for merge. */
-    private Commit _mergedParent1 = null;
-    /** Commit parent2 for merge. */
-    private Commit _mergedParent2 = null;
+    /** SHA of the root Tree of the commit's files. */
+    private String _treeSHA;
+    /** SHA of commit parent1 for merge. */
+    private String _mergedParent1SHA = null;
+    /** SHA of commit parent2 for merge. */
+    private String _mergedParent2SHA = null;
+    /** All files of the commit, flattened from its tree on first use.
+     * Key: path; Val: SHA. */
+    private transient HashMap<String, String> _blobsPtr;
 
     /** Commit Constructor.
      * @param message  the message of commit
-     * @param parent   the parrent of commit
-     * @param blobsPtr the files of commit
+     * @param parentSHA the SHA of the parent of commit, null if none
+     * @param treeSHA the SHA of the root tree of the files of commit
      */
-    public Commit(String message, Commit parent,
-                  HashMap<String, String> blobsPtr) {
+    public Commit(String message, String parentSHA, String treeSHA) {
+        this(message, parentSHA, treeSHA, null, null);
+    }
+
+    /** Commit Constructor for merge commits.
+     * Parents are kept as SHAs and loaded lazily from COMMIT_DIR, so a
+     * commit never drags its whole ancestry along when it is written.
+     * @param message  the message of commit
+     * @param parentSHA the SHA of the parent of commit, null if none
+     * @param treeSHA the SHA of the root tree of the files of commit
+     * @param p1SHA the SHA of merged parent1, null if not a merge
+     * @param p2SHA the SHA of merged parent2, null if not a merge
+     */
+    public Commit(String message, String parentSHA, String treeSHA,
+                  String p1SHA, String p2SHA) {
+        this(message, parentSHA, treeSHA, p1SHA, p2SHA,
+             parentSHA == null ? new Date(3600000L * 8) : new Date());
+    }
+
+    /** Commit Constructor for a commit made at TIMESTAMP, such as one
+     * converted from an older repository by LegacyRepo.
+     * @param message  the message of commit
+     * @param parentSHA the SHA of the parent of commit, null if none
+     * @param treeSHA the SHA of the root tree of the files of commit
+     * @param p1SHA the SHA of merged parent1, null if not a merge
+     * @param p2SHA the SHA of merged parent2, null if not a merge
+     * @param timestamp when the commit was made
+     */
+    Commit(String message, String parentSHA, String treeSHA,
+           String p1SHA, String p2SHA, Date timestamp) {
         this._message = message;
-        this._parent = parent;
-        this._blobsPtr = new HashMap<String, String>();
-
-        if (this._parent == null) {
-            final long magic = 3600000L * 8;
-            this._timestamp = new Date(magic);
-            for (String blobName: blobsPtr.keySet()) {
-                this._blobsPtr.put(blobName, blobsPtr.get(blobName));
+        this._parentSHA = parentSHA;
+        this._treeSHA = treeSHA;
+        this._mergedParent1SHA = p1SHA;
+        this._mergedParent2SHA = p2SHA;
+        this._timestamp = timestamp;
+        this._commitID = computeID();
+    }
+
+    /** A commit to be filled in by fromBytes. */
+    private Commit() {
+    }
+
+    /** Return this commit in its binary encoding: the MAGIC int, a
+     * VERSION byte, a byte whose bits 0, 1 and 2 say whether the parent
+     * and merged parents 1 and 2 are present, the 20-byte commit ID, root
+     * tree SHA and those parent SHAs, the timestamp as a long, and the
+     * message as a length and UTF-8 bytes. */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            String[] parents = {
+                _parentSHA, _mergedParent1SHA, _mergedParent2SHA
+            };
+            int present = 0;
+            for (int i = 0; i < parents.length; i += 1) {
+                if (parents[i] != null) {
+                    present |= 1 << i;
+                }
+            }
+            out.writeByte(present);
+            writeSHA(out, _commitID);
+            writeSHA(out, _treeSHA);
+            for (String sha : parents) {
+                if (sha != null) {
+                    writeSHA(out, sha);
+                }
+            }
+            out.writeLong(_timestamp.getTime());
+            byte[] msg = _message.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(msg.length);
+            out.write(msg);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Return the commit encoded in BYTES, either by toBytes or, for
+     * commits written before the binary encoding, by Java serialization.
+     * @param bytes the stored commit. */
+    public static Commit fromBytes(byte[] bytes) {
+        if (isSerialized(bytes)) {
+            return deserialize(bytes, Commit.class);
+        }
+        Commit c = new Commit();
+        try (DataInputStream in = decoder(bytes, MAGIC, VERSION, "commit")) {
+            int present = in.readByte();
+            c._commitID = readSHA(in);
+            c._treeSHA = readSHA(in);
+            if ((present & 1) != 0) {
+                c._parentSHA = readSHA(in);
+            }
+            if ((present & 2) != 0) {
+                c._mergedParent1SHA = readSHA(in);
             }
-        } else {
-            this._timestamp = new Date();
-            for (String blobName: blobsPtr.keySet()) {
-                this._blobsPtr.put(blobName, blobsPtr.get(blobName));
+            if ((present & 4) != 0) {
+                c._mergedParent2SHA = readSHA(in);
             }
+            c._timestamp = new Date(in.readLong());
+            byte[] msg = new byte[in.readInt()];
+            in.readFully(msg);
+            c._message = new String(msg, StandardCharsets.UTF_8);
+        } catch (IOException excp) {
+            throw error("Corrupt commit");
         }
+        return c;
+    }
+
+    /** Return the SHA-1 of this commit's metadata and root tree. Only
+     * parent and tree SHAs take part, so this is O(1), not O(history). */
+    private String computeID() {
+        return sha1("commit\n" + _message + "\n" + _timestamp.getTime()
+                + "\n", _parentSHA + "\n" + _mergedParent1SHA + "\n"
+                + _mergedParent2SHA + "\n" + _treeSHA + "\n");
     }
 
     /** Restore Blobs to this commit's version.
      * @param fileName the name of file wants to recover.
      * @param blobSHA the blobSHA of the file. */
     public void recover(String fileName, String blobSHA) {
-        File thisBlobfile = new File(Main.BLOBS_DIR.getPath()
-                + "/" + blobSHA);
-
-        if (!thisBlobfile.exists()) {
+        if (!GitlitController.hasBlobInGitDir(blobSHA)) {
             System.out.println("File does not exist in that commit.");
-            System.exit(0);
-        }
-        writeContents(new File(fileName), readContents(thisBlobfile));
-    }
-
-    /** Return the length between THIS and INIT commit.
-     * @return the distance from INIT. RECURSIVELY*/
-    public int distanceToInit() {
-        if (_parent == null) {
-            return 0;
-        } else {
-            return 1 + getParent().distanceToInit();
+            Main.exit(0);
         }
+        GitlitController.writeBlobToCWD(fileName, blobSHA);
     }
 
     /** Get the kth commit from this RECURSIVELY.
@@ -82,7 +179,7 @@ public class Commit implements Serializable {
     public Commit far(int k) {
         if (k < 0) {
             System.out.println("No negative distance");
-            System.exit(0);
+            Main.exit(0);
         }
         if (k == 0) {
             return this;
@@ -100,59 +197,85 @@ public class Commit implements Serializable {
         return this._timestamp;
     }
 
-    /** Return the Commit Parent, it exists. */
+    /** Return the Commit Parent, it exists. Loaded from COMMIT_DIR. */
     public Commit getParent() {
-        return this._parent;
+        if (_parentSHA == null) {
+            return null;
+        }
+        return GitlitController.getCommitInGitDir(_parentSHA);
+    }
+
+    /** Return the SHA of the Commit Parent, null if none. */
+    public String getParentSHA() {
+        return this._parentSHA;
     }
 
-    /** Return the Commit ID.
-     * NOT WORK, NOT SURE WHY, RETURN ADDRESS
-     * IN MEMORY OF COMMIT, NOT ITS SHA???*/
+    /** Return the Commit ID. */
     public String getCommitID() {
         return this._commitID;
     }
 
     /** Return the SHA-1 hash value of this Commit. */
     public String getCommitSHA() {
-        return sha1(serialize(this));
+        return this._commitID;
     }
 
-    /** Return the SHA-1 hash value of a Blob File in this Commit.
-     * @param fileName name of file to get Blob from. */
+    /** Return the SHA-1 hash value of a Blob File in this Commit, found
+     * by walking the trees on its path.
+     * @param fileName path of file to get Blob from. */
     public String getBlobSHA(String fileName) {
-        return _blobsPtr.get(fileName);
+        if (_blobsPtr != null) {
+            return _blobsPtr.get(fileName);
+        }
+        return Tree.lookup(_treeSHA, fileName);
     }
 
-    /** Return the Blobs Pointers . */
+    /** Return the Blobs Pointers of every file, flattened from the tree.
+     * Prefer getTreeSHA and Tree.diff when only changes matter. */
     public HashMap<String, String> getBlobsPtr() {
+        if (_blobsPtr == null) {
+            _blobsPtr = new HashMap<>();
+            Tree.flatten(_treeSHA, "", _blobsPtr);
+        }
         return this._blobsPtr;
     }
 
+    /** Return the SHA of the root tree of this commit. */
+    public String getTreeSHA() {
+        return _treeSHA;
+    }
+
     /** Compare 2 commits.
      * @param c the commit to compare with THIS commit.
      * @return TRUE if the commit is the same using SHA. */
     public boolean equals(Commit c) {
-        return this.getCommitSHA().equals(c.getCommitSHA());
+        return c != null && this._commitID.equals(c._commitID);
     }
 
-    /** Return merged Parent1. */
+    /** Return merged Parent1, loaded from COMMIT_DIR. */
     public Commit getMergedParent1() {
-        return _mergedParent1;
+        if (_mergedParent1SHA == null) {
+            return null;
+        }
+        return GitlitController.getCommitInGitDir(_mergedParent1SHA);
     }
-    /** Set SHA of merged Parent1.
-     * @param p1 the SHA code of parent1. */
-    public void setMergedParent1(Commit p1) {
-        _mergedParent1 = p1;
+
+    /** Return SHA of merged Parent1, null if not a merge. */
+    public String getMergedParent1SHA() {
+        return _mergedParent1SHA;
     }
 
-    /** Return merged Parent2. */
+    /** Return merged Parent2, loaded from COMMIT_DIR. */
     public Commit getMergedParent2() {
-        return _mergedParent2;
+        if (_mergedParent2SHA == null) {
+            return null;
+        }
+        return GitlitController.getCommitInGitDir(_mergedParent2SHA);
     }
-    /** Set SHA of merged Parent2.
-     * @param p2 the SHA code of parent1. */
-    public void setMergedParent2(Commit p2) {
-        _mergedParent2 = p2;
+
+    /** Return SHA of merged Parent2, null if not a merge. */
+    public String getMergedParent2SHA() {
+        return _mergedParent2SHA;
     }
 
     /** Get the log (History) of the commit.
@@ -170,12 +293,9 @@ public class Commit implements Serializable {
         System.out.println("===");
         System.out.println("commit " + this.getCommitSHA());
 
-        if (this.getMergedParent1() != null
-                && this.getMergedParent2() != null) {
-            String p1SHA = this.getMergedParent1().getCommitSHA().
-                    substring(0, 7);
-            String p2SHA = this.getMergedParent2().getCommitSHA().
-                    substring(0, 7);
+        if (_mergedParent1SHA != null && _mergedParent2SHA != null) {
+            String p1SHA = _mergedParent1SHA.substring(0, 7);
+            String p2SHA = _mergedParent2SHA.substring(0, 7);
             System.out.println("Merge: " + p1SHA + " " + p2SHA);
         }
 
@@ -0,0 +1,467 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import static gitlet.Utils.*;
+
+/** The parents and generation number of every commit, so that ancestry
+ *  questions never deserialize a commit.
+ *
+ *  The generation of a commit is one more than the largest generation
+ *  of its parents, and 1 for the initial commit. A commit is never an
+ *  ancestor of one with a generation no larger than its own, which lets
+ *  walks stop as soon as they pass below the commits they look for.
+ *
+ *  The graph file (COMMIT_GRAPH) is the header "CGPH" and a version int,
+ *  a 256-entry fanout table, the 20-byte binary SHAs in sorted order,
+ *  then for each commit the positions of its two parents (-1 if absent)
+ *  and its generation, as ints. Commits made since it was written are
+ *  appended to COMMIT_GRAPH_LOG as "SHA PARENT PARENT" lines ("-" for no
+ *  parent); once there are more than LOG_LIMIT of them the file is
+ *  rewritten. A repository without a graph has it built from all
+ *  commits on first use.
+ *  @author Truong Le
+ */
+class CommitGraph {
+    /** Graph format version. */
+    private static final int VERSION = 1;
+    /** Length of a binary SHA-1. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+    /** Size of the header plus fanout table. */
+    private static final int FANOUT_END = 8 + 256 * 4;
+    /** Size of the per-commit parent and generation record. */
+    private static final int RECORD = 12;
+    /** Most commits kept in COMMIT_GRAPH_LOG before the graph is
+     *  rewritten. */
+    static final int LOG_LIMIT = 256;
+
+    /** Flag of commits reachable from the first commit of a merge-base
+     *  query. */
+    private static final int SIDE1 = 1;
+    /** Flag of commits reachable from the second commit. */
+    private static final int SIDE2 = 2;
+    /** Flag of commits reachable from a common ancestor already found. */
+    private static final int STALE = 4;
+
+    /** The mapped graph, loaded on first use. */
+    private static MappedByteBuffer _graph;
+    /** Number of commits in _graph. */
+    private static int _count;
+    /** Parents of the commits in COMMIT_GRAPH_LOG. */
+    private static HashMap<String, String[]> _logged;
+    /** Generations of commits not in _graph, computed so far. */
+    private static final HashMap<String, Integer> _gens = new HashMap<>();
+
+    /** Record new commit C. */
+    static void add(Commit c) {
+        if (!Main.COMMIT_GRAPH.isFile()) {
+            return;
+        }
+        String line = c.getCommitSHA() + " " + orDash(c.getParentSHA())
+            + " " + orDash(c.getMergedParent1SHA()) + "\n";
+        try (OutputStream out =
+                 new FileOutputStream(Main.COMMIT_GRAPH_LOG, true)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (_logged != null) {
+            _logged.put(c.getCommitSHA(), parentsOf(c));
+        }
+        if (Main.COMMIT_GRAPH_LOG.length()
+                > (long) LOG_LIMIT * (3 * UID_LENGTH + 3)) {
+            rebuild();
+        }
+    }
+
+    /** Return SHA, or "-" if it is null. */
+    private static String orDash(String sha) {
+        return sha == null ? "-" : sha;
+    }
+
+    /** Return the SHAs of the parents of commit C. */
+    private static String[] parentsOf(Commit c) {
+        if (c.getParentSHA() == null) {
+            return new String[0];
+        } else if (c.getMergedParent1SHA() == null) {
+            return new String[] {c.getParentSHA()};
+        }
+        return new String[] {c.getParentSHA(), c.getMergedParent1SHA()};
+    }
+
+    /** Return the SHAs of the parents of commit SHA: none for the
+     *  initial commit, the head it was made on first, and the merged-in
+     *  commit second for a merge. */
+    static String[] parents(String sha) {
+        load();
+        int k = find(sha);
+        if (k >= 0) {
+            int p1 = _graph.getInt(recordAt(k));
+            int p2 = _graph.getInt(recordAt(k) + 4);
+            if (p1 < 0) {
+                return new String[0];
+            } else if (p2 < 0) {
+                return new String[] {sha(p1)};
+            }
+            return new String[] {sha(p1), sha(p2)};
+        }
+        String[] logged = _logged.get(sha);
+        if (logged != null) {
+            return logged;
+        }
+        return parentsOf(GitlitController.getCommitInGitDir(sha));
+    }
+
+    /** Return the generation of commit SHA. */
+    static int generation(String sha) {
+        Integer known = knownGeneration(sha);
+        if (known != null) {
+            return known;
+        }
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(sha);
+        while (!stack.isEmpty()) {
+            String top = stack.peek();
+            if (knownGeneration(top) != null) {
+                stack.pop();
+                continue;
+            }
+            int gen = 1;
+            boolean ready = true;
+            for (String p : parents(top)) {
+                Integer g = knownGeneration(p);
+                if (g == null) {
+                    stack.push(p);
+                    ready = false;
+                } else {
+                    gen = Math.max(gen, g + 1);
+                }
+            }
+            if (ready) {
+                _gens.put(top, gen);
+                stack.pop();
+            }
+        }
+        return _gens.get(sha);
+    }
+
+    /** Return the generation of commit SHA if it is in the graph or has
+     *  been computed, and null otherwise. */
+    private static Integer knownGeneration(String sha) {
+        load();
+        int k = find(sha);
+        if (k >= 0) {
+            return _graph.getInt(recordAt(k) + 8);
+        }
+        return _gens.get(sha);
+    }
+
+    /** Return the best common ancestors of commits A and B: the common
+     *  ancestors that are not ancestors of another common ancestor. They
+     *  are in order of decreasing generation.
+     *
+     *  Commits are visited from both sides in order of decreasing
+     *  generation, so every descendant of a commit is visited before it.
+     *  A commit reached from both sides is a best common ancestor unless
+     *  it was already reached from one found earlier, and the walk stops
+     *  once everything left to visit lies below a common ancestor. */
+    static List<String> mergeBases(String a, String b) {
+        List<String> result = new ArrayList<>();
+        if (a.equals(b)) {
+            result.add(a);
+            return result;
+        }
+        HashMap<String, Integer> flags = new HashMap<>();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+            Comparator.comparingInt((String sha) -> -generation(sha))
+                .thenComparing(Comparator.naturalOrder()));
+        flags.put(a, SIDE1);
+        flags.put(b, SIDE2);
+        queue.add(a);
+        queue.add(b);
+        while (hasActive(queue, flags)) {
+            String sha = queue.poll();
+            int f = flags.get(sha);
+            if ((f & (SIDE1 | SIDE2 | STALE)) == (SIDE1 | SIDE2)) {
+                result.add(sha);
+                f |= STALE;
+                flags.put(sha, f);
+            }
+            for (String p : parents(sha)) {
+                int pf = flags.getOrDefault(p, 0);
+                if ((pf & f) != f) {
+                    flags.put(p, pf | f);
+                    queue.add(p);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Return true if some commit in QUEUE is not marked STALE in
+     *  FLAGS. */
+    private static boolean hasActive(PriorityQueue<String> queue,
+                                     HashMap<String, Integer> flags) {
+        for (String sha : queue) {
+            if ((flags.get(sha) & STALE) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the commit in CANDIDATES, all ancestors of commit SHA,
+     *  that is fewest parent links from SHA, preferring first parents on
+     *  a tie. Commits below the lowest generation in CANDIDATES are never
+     *  walked. */
+    static String nearest(String sha, Collection<String> candidates) {
+        int floor = Integer.MAX_VALUE;
+        for (String c : candidates) {
+            floor = Math.min(floor, generation(c));
+        }
+        ArrayDeque<String> todo = new ArrayDeque<>();
+        HashSet<String> seen = new HashSet<>();
+        todo.add(sha);
+        seen.add(sha);
+        while (!todo.isEmpty()) {
+            String c = todo.poll();
+            if (candidates.contains(c)) {
+                return c;
+            }
+            for (String p : parents(c)) {
+                if (generation(p) >= floor && seen.add(p)) {
+                    todo.add(p);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Return true if commit ANCESTOR is commit SHA or one of its
+     *  ancestors. Commits with a generation below ANCESTOR's are never
+     *  walked. */
+    static boolean isAncestor(String ancestor, String sha) {
+        int floor = generation(ancestor);
+        Deque<String> todo = new ArrayDeque<>();
+        HashSet<String> seen = new HashSet<>();
+        todo.push(sha);
+        while (!todo.isEmpty()) {
+            String c = todo.pop();
+            if (c.equals(ancestor)) {
+                return true;
+            }
+            if (!seen.add(c) || generation(c) <= floor) {
+                continue;
+            }
+            for (String p : parents(c)) {
+                todo.push(p);
+            }
+        }
+        return false;
+    }
+
+    /** Map COMMIT_GRAPH and read COMMIT_GRAPH_LOG, building the graph
+     *  first if it does not exist. */
+    private static void load() {
+        if (_graph != null) {
+            return;
+        }
+        if (!Main.COMMIT_GRAPH.isFile()) {
+            rebuild();
+        }
+        try (FileChannel ch = FileChannel.open(Main.COMMIT_GRAPH.toPath())) {
+            _graph = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (_graph.getInt(0) != 0x43475048 || _graph.getInt(4) != VERSION) {
+            throw error("Corrupt commit graph");
+        }
+        _count = _graph.getInt(FANOUT_END - 4);
+        _logged = new HashMap<>();
+        if (Main.COMMIT_GRAPH_LOG.isFile()) {
+            String log = readContentsAsString(Main.COMMIT_GRAPH_LOG);
+            for (String line : log.split("\n")) {
+                String[] words = line.split(" ");
+                if (words.length != 3) {
+                    continue;
+                }
+                List<String> ps = new ArrayList<>();
+                for (int i = 1; i < 3; i += 1) {
+                    if (!words[i].equals("-")) {
+                        ps.add(words[i]);
+                    }
+                }
+                _logged.put(words[0], ps.toArray(new String[0]));
+            }
+        }
+    }
+
+    /** Forget the mapped graph and logged commits, after another process
+     *  changed them. */
+    static void reload() {
+        _graph = null;
+        _logged = null;
+        _gens.clear();
+    }
+
+    /** Write COMMIT_GRAPH afresh for every commit, emptying
+     *  COMMIT_GRAPH_LOG. Parents and generations already known are
+     *  reused; other commits are read once. */
+    static void rebuild() {
+        List<String> shas = GitlitController.allCommitSHAs();
+        HashMap<String, Integer> position = new HashMap<>();
+        for (int k = 0; k < shas.size(); k += 1) {
+            position.put(shas.get(k), k);
+        }
+        List<String[]> parents = new ArrayList<>();
+        int[] gens = new int[shas.size()];
+        boolean haveGraph = Main.COMMIT_GRAPH.isFile();
+        for (int k = 0; k < shas.size(); k += 1) {
+            String sha = shas.get(k);
+            if (haveGraph) {
+                parents.add(parents(sha));
+                gens[k] = generation(sha);
+            } else {
+                parents.add(null);
+            }
+        }
+        if (!haveGraph) {
+            _logged = new HashMap<>();
+            for (int k = 0; k < shas.size(); k += 1) {
+                String[] ps = parentsOf(
+                    GitlitController.getCommitInGitDir(shas.get(k)));
+                parents.set(k, ps);
+                _logged.put(shas.get(k), ps);
+            }
+            for (int k = 0; k < shas.size(); k += 1) {
+                gens[k] = generationOf(shas.get(k));
+            }
+        }
+
+        File tmp = Durable.temp();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(0x43475048);
+            out.writeInt(VERSION);
+            int[] fanout = new int[256];
+            for (String sha : shas) {
+                fanout[Integer.parseInt(sha.substring(0, 2), 16)] += 1;
+            }
+            int total = 0;
+            for (int b = 0; b < 256; b += 1) {
+                total += fanout[b];
+                out.writeInt(total);
+            }
+            for (String sha : shas) {
+                out.write(PackFile.toBytes(sha));
+            }
+            for (int k = 0; k < shas.size(); k += 1) {
+                String[] ps = parents.get(k);
+                out.writeInt(ps.length > 0 ? position.get(ps[0]) : -1);
+                out.writeInt(ps.length > 1 ? position.get(ps[1]) : -1);
+                out.writeInt(gens[k]);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durable.install(tmp, Main.COMMIT_GRAPH);
+        Durable.sync();
+        Main.COMMIT_GRAPH_LOG.delete();
+        _graph = null;
+        _logged = null;
+        _gens.clear();
+    }
+
+    /** Return the generation of SHA while the graph is being built, when
+     *  every parent is in _logged. */
+    private static int generationOf(String sha) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(sha);
+        while (!stack.isEmpty()) {
+            String top = stack.peek();
+            if (_gens.containsKey(top)) {
+                stack.pop();
+                continue;
+            }
+            int gen = 1;
+            boolean ready = true;
+            for (String p : _logged.get(top)) {
+                Integer g = _gens.get(p);
+                if (g == null) {
+                    stack.push(p);
+                    ready = false;
+                } else {
+                    gen = Math.max(gen, g + 1);
+                }
+            }
+            if (ready) {
+                _gens.put(top, gen);
+                stack.pop();
+            }
+        }
+        return _gens.get(sha);
+    }
+
+    /** Return the position of the record of the Kth commit. */
+    private static int recordAt(int k) {
+        return FANOUT_END + _count * SHA_BYTES + k * RECORD;
+    }
+
+    /** Return the index of SHA in the graph, or -1. */
+    private static int find(String sha) {
+        byte[] key = PackFile.toBytes(sha);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : _graph.getInt(8 + (first - 1) * 4);
+        int hi = _graph.getInt(8 + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compare the Kth SHA in the graph with KEY. */
+    private static int compareAt(int k, byte[] key) {
+        int pos = FANOUT_END + k * SHA_BYTES;
+        for (int i = 0; i < SHA_BYTES; i += 1) {
+            int c = (_graph.get(pos + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the Kth SHA in the graph as hex. */
+    private static String sha(int k) {
+        byte[] raw = new byte[SHA_BYTES];
+        _graph.get(FANOUT_END + k * SHA_BYTES, raw);
+        return PackFile.toHex(raw);
+    }
+}
@@ -0,0 +1,200 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import static gitlet.Utils.*;
+
+/** A sorted index of every commit SHA, used to resolve abbreviated
+ *  commit IDs without listing or reading any commit.
+ *
+ *  The index file (COMMIT_INDEX) is the header "CIDX" and a version int,
+ *  a 256-entry fanout table as in a pack index, then the 20-byte binary
+ *  SHAs in sorted order. It is read through a MappedByteBuffer, so a
+ *  prefix is resolved with one binary search. Commits made since it was
+ *  written are appended to COMMIT_LOG as hex lines, and are merged into
+ *  the index once there are more than LOG_LIMIT of them. A repository
+ *  without an index has it built from all commits on first use.
+ *  @author Truong Le
+ */
+class CommitIndex {
+    /** Index format version. */
+    private static final int VERSION = 1;
+    /** Length of a binary SHA-1. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+    /** Size of the header plus fanout table. */
+    private static final int FANOUT_END = 8 + 256 * 4;
+    /** Length of a line of COMMIT_LOG. */
+    private static final int LOG_LINE = UID_LENGTH + 1;
+    /** Most commits kept in COMMIT_LOG before it is merged. */
+    static final int LOG_LIMIT = 256;
+
+    /** The mapped index, loaded on first use. */
+    private static MappedByteBuffer _idx;
+    /** Number of SHAs in _idx. */
+    private static int _count;
+
+    /** Record new commit COMMITSHA. */
+    static void add(String commitSHA) {
+        if (!Main.COMMIT_INDEX.isFile()) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(Main.COMMIT_LOG, true)) {
+            out.write((commitSHA + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (Main.COMMIT_LOG.length() > (long) LOG_LIMIT * LOG_LINE) {
+            rebuild();
+        }
+    }
+
+    /** Return the full SHA of the one commit whose SHA starts with
+     *  PREFIX, or null if there is none. If several commits match, prints
+     *  "Ambiguous commit id." and exits. PREFIX may be in either case. */
+    static String resolve(String prefix) {
+        String id = prefix.toLowerCase();
+        if (id.isEmpty() || id.length() > UID_LENGTH
+                || !id.matches("[0-9a-f]+")) {
+            return null;
+        }
+        TreeSet<String> found = new TreeSet<>();
+        load();
+        byte[] key = PackFile.toBytes((id + "0".repeat(UID_LENGTH))
+                                      .substring(0, UID_LENGTH));
+        for (int k = lowerBound(key); k < _count && found.size() < 2;
+             k += 1) {
+            String sha = sha(k);
+            if (!sha.startsWith(id)) {
+                break;
+            }
+            found.add(sha);
+        }
+        for (String sha : logged()) {
+            if (sha.startsWith(id)) {
+                found.add(sha);
+            }
+        }
+        if (found.size() > 1) {
+            System.out.println("Ambiguous commit id.");
+            Main.exit(0);
+        }
+        return found.isEmpty() ? null : found.first();
+    }
+
+    /** Map COMMIT_INDEX, building it first if it does not exist. */
+    private static void load() {
+        if (_idx != null) {
+            return;
+        }
+        if (!Main.COMMIT_INDEX.isFile()) {
+            rebuild();
+        }
+        try (FileChannel ch = FileChannel.open(Main.COMMIT_INDEX.toPath())) {
+            _idx = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (_idx.getInt(0) != 0x43494458 || _idx.getInt(4) != VERSION) {
+            throw error("Corrupt commit index");
+        }
+        _count = _idx.getInt(FANOUT_END - 4);
+    }
+
+    /** Forget the mapped index, after another process rewrote it. */
+    static void reload() {
+        _idx = null;
+    }
+
+    /** Write COMMIT_INDEX afresh from every commit, emptying
+     *  COMMIT_LOG. */
+    static void rebuild() {
+        List<String> shas = GitlitController.allCommitSHAs();
+        File tmp = Durable.temp();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(0x43494458);
+            out.writeInt(VERSION);
+            int[] fanout = new int[256];
+            for (String sha : shas) {
+                fanout[Integer.parseInt(sha.substring(0, 2), 16)] += 1;
+            }
+            int total = 0;
+            for (int b = 0; b < 256; b += 1) {
+                total += fanout[b];
+                out.writeInt(total);
+            }
+            for (String sha : shas) {
+                out.write(PackFile.toBytes(sha));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durable.install(tmp, Main.COMMIT_INDEX);
+        Durable.sync();
+        Main.COMMIT_LOG.delete();
+        _idx = null;
+    }
+
+    /** Return the SHAs in COMMIT_LOG. */
+    private static List<String> logged() {
+        List<String> result = new ArrayList<>();
+        if (Main.COMMIT_LOG.isFile()) {
+            for (String line
+                     : readContentsAsString(Main.COMMIT_LOG).split("\n")) {
+                if (!line.isEmpty()) {
+                    result.add(line);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Return the index of the first SHA in the index that is not less
+     *  than KEY. The fanout table narrows the search to KEY's first
+     *  byte. */
+    private static int lowerBound(byte[] key) {
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : _idx.getInt(8 + (first - 1) * 4);
+        int hi = _idx.getInt(8 + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Compare the Kth SHA in the index with KEY. */
+    private static int compareAt(int k, byte[] key) {
+        int pos = FANOUT_END + k * SHA_BYTES;
+        for (int i = 0; i < SHA_BYTES; i += 1) {
+            int c = (_idx.get(pos + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the Kth SHA in the index as hex. */
+    private static String sha(int k) {
+        byte[] raw = new byte[SHA_BYTES];
+        _idx.get(FANOUT_END + k * SHA_BYTES, raw);
+        return PackFile.toHex(raw);
+    }
+}
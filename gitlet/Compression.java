@@ -0,0 +1,316 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** Compression of loose objects.
+ *
+ *  A loose object starts with the bytes 'G', 'L', 'O' and the id of the
+ *  Codec that compressed the rest of the file. Files without that header
+ *  are raw objects written before compression existed and are read as
+ *  they are. Objects are compressed and decompressed as streams, so they
+ *  are never fully materialized in memory.
+ *
+ *  The codec used for new objects is chosen by the gitlet.compression
+ *  system property: "deflate" (the default), "deflate-1" for DEFLATE at
+ *  its fastest level, or "none". Other codecs may be added with
+ *  register.
+ *
+ *  Uncompressed objects are copied between the object store and the
+ *  working tree with FileChannel.transferTo, which lets the kernel move
+ *  the bytes (sendfile or copy_file_range) without a trip through the
+ *  Java heap.
+ *  @author Truong Le
+ */
+class Compression {
+
+    /** A compression format for loose objects. */
+    interface Codec {
+        /** Return the id of this codec, stored in each object header. */
+        byte id();
+
+        /** Return a stream compressing into OUT. */
+        OutputStream compress(OutputStream out);
+
+        /** Return a stream decompressing IN. */
+        InputStream decompress(InputStream in);
+    }
+
+    /** Objects stored as they are. */
+    static final Codec NONE = new Codec() {
+        @Override
+        public byte id() {
+            return 0;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    };
+
+    /** DEFLATE at the default level. */
+    static final Codec DEFLATE = deflate(1, Deflater.DEFAULT_COMPRESSION);
+    /** DEFLATE at level 1, its fastest, for write-heavy repositories. */
+    static final Codec DEFLATE_1 = deflate(2, Deflater.BEST_SPEED);
+
+    /** Registered codecs by name. */
+    private static final HashMap<String, Codec> BY_NAME = new HashMap<>();
+    /** Registered codecs by id. */
+    private static final HashMap<Byte, Codec> BY_ID = new HashMap<>();
+
+    static {
+        register("none", NONE);
+        register("deflate", DEFLATE);
+        register("deflate-1", DEFLATE_1);
+    }
+
+    /** Size of stream buffers. */
+    static final int BUFFER_SIZE = 1 << 16;
+    /** Length of the object header. */
+    private static final int HEADER = 4;
+
+    /** Make CODEC available under NAME and its id. */
+    static void register(String name, Codec codec) {
+        BY_NAME.put(name, codec);
+        BY_ID.put(codec.id(), codec);
+    }
+
+    /** Return a DEFLATE codec with id ID and compression level LEVEL. The
+     *  streams it returns are given their own Deflater or Inflater, which
+     *  they therefore do not end themselves, so they end it on close
+     *  rather than leave its native memory to the garbage collector. */
+    private static Codec deflate(int id, int level) {
+        return new Codec() {
+            @Override
+            public byte id() {
+                return (byte) id;
+            }
+
+            @Override
+            public OutputStream compress(OutputStream out) {
+                return new DeflaterOutputStream(out, new Deflater(level),
+                        BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) {
+                return new InflaterInputStream(in, new Inflater(),
+                        BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inf.end();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /** Return the codec used for new objects. */
+    static Codec current() {
+        String name = System.getProperty("gitlet.compression", "deflate");
+        Codec codec = BY_NAME.get(name);
+        if (codec == null) {
+            throw Utils.error("Unknown compression: %s", name);
+        }
+        return codec;
+    }
+
+    /** Return a stream writing a new loose object to FILE with the
+     *  current codec. */
+    static OutputStream newOutputStream(File file) {
+        try {
+            OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(file.toPath()), BUFFER_SIZE);
+            Codec codec = current();
+            out.write(new byte[] {'G', 'L', 'O', codec.id()});
+            return codec.compress(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a stream reading the uncompressed contents of loose object
+     *  FILE. */
+    static InputStream newInputStream(File file) {
+        try {
+            InputStream in = new BufferedInputStream(
+                    Files.newInputStream(file.toPath()), BUFFER_SIZE);
+            Codec codec = codecOf(in);
+            return codec.decompress(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the codec of the object whose stream is IN, consuming its
+     *  header. IN must support mark; legacy objects are left unread and
+     *  read as NONE. */
+    private static Codec codecOf(InputStream in) throws IOException {
+        in.mark(HEADER);
+        byte[] header = in.readNBytes(HEADER);
+        if (header.length == HEADER && header[0] == 'G'
+                && header[1] == 'L' && header[2] == 'O') {
+            Codec codec = BY_ID.get(header[3]);
+            if (codec == null) {
+                throw Utils.error("Unknown compression id: %d", header[3]);
+            }
+            return codec;
+        }
+        in.reset();
+        return NONE;
+    }
+
+    /** Return the offset at which the contents of loose object FILE
+     *  start if it is stored uncompressed, or -1 if it is compressed. */
+    static long rawOffset(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] header = in.readNBytes(HEADER);
+            if (header.length < HEADER || header[0] != 'G'
+                    || header[1] != 'L' || header[2] != 'O') {
+                return 0;
+            }
+            return header[3] == NONE.id() ? HEADER : -1;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return true if the contents of loose object FILE are longer than
+     *  LENGTH bytes. Compressed objects are decompressed as a stream, and
+     *  no further than LENGTH + 1 bytes. */
+    static boolean longerThan(File file, long length) {
+        long raw = rawOffset(file);
+        if (raw >= 0) {
+            return file.length() - raw > length;
+        }
+        try (InputStream in = newInputStream(file)) {
+            in.skipNBytes(length);
+            return in.read() >= 0;
+        } catch (EOFException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write the contents of SRC as loose object FILE, uncompressed,
+     *  copying them from file to file. */
+    static void writeRaw(File src, File file) {
+        try (FileChannel out = FileChannel.open(file.toPath(),
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap(new byte[] {'G', 'L', 'O', NONE.id()}));
+            try (FileChannel in = FileChannel.open(src.toPath())) {
+                transfer(in, 0, in.size(), out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Replace the contents of DEST with the LENGTH bytes of SRC that
+     *  start at POSITION, copying from file to file. */
+    static void copy(File src, long position, long length, File dest) {
+        try (FileChannel in = FileChannel.open(src.toPath());
+             FileChannel out = FileChannel.open(dest.toPath(),
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            transfer(in, position, length, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Copy the LENGTH bytes of IN at POSITION to the end of OUT.
+     *  transferTo may copy less than asked, so it is called until
+     *  everything has been copied. If a call makes no progress, the rest
+     *  is copied through a buffer instead. */
+    private static void transfer(FileChannel in, long position, long length,
+                                 FileChannel out) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long n = in.transferTo(position + done, length - done, out);
+            if (n <= 0) {
+                copyBuffered(in, position + done, length - done, out);
+                return;
+            }
+            done += n;
+        }
+    }
+
+    /** Copy the LENGTH bytes of IN at POSITION to the end of OUT through
+     *  a heap buffer. */
+    private static void copyBuffered(FileChannel in, long position,
+                                     long length, FileChannel out)
+        throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        long done = 0;
+        while (done < length) {
+            buf.clear();
+            buf.limit((int) Math.min(BUFFER_SIZE, length - done));
+            int n = in.read(buf, position + done);
+            if (n < 0) {
+                throw new IOException("unexpected end of object");
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            done += n;
+        }
+    }
+
+    /** Return the whole uncompressed contents of loose object FILE. */
+    static byte[] readAll(File file) {
+        try (InputStream in = newInputStream(file)) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write DATA as loose object FILE, atomically (see Durable). */
+    static void write(File file, byte[] data) {
+        File tmp = Durable.temp();
+        try (OutputStream out = newOutputStream(tmp)) {
+            out.write(data);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durable.install(tmp, file);
+        Gc.wroteLoose();
+    }
+}
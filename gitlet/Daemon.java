@@ -0,0 +1,319 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import static gitlet.Utils.*;
+
+/** A long-lived server that runs gitlet commands sent by Client, so
+ *  that scripts issuing many commands pay for JVM startup, class loading
+ *  and warm-up once rather than on every command.
+ *
+ *  The daemon listens on the Unix domain socket DAEMON_SOCKET of the
+ *  repository in its working directory, and runs one command at a time
+ *  there. A request is the number of arguments and then each argument
+ *  (as DataOutputStream.writeUTF). The reply streams what the command
+ *  prints as frames, each a kind byte (OUT or ERR), a length and the
+ *  bytes, and ends with END and the exit code. Requests with more than
+ *  MAX_ARGS arguments and frames longer than MAX_FRAME are rejected. A
+ *  command that stops early through Main.exit throws an Exit, which ends
+ *  just that command.
+ *
+ *  The commit index, commit graph, message index, packs and trees stay
+ *  loaded between commands. The files behind them are stamped after each
+ *  command, and the caches are dropped if another process changed those
+ *  files in the meantime. The daemon exits once no command has come for
+ *  gitlet.idle seconds (300 by default; 0 for never).
+ *  @author Truong Le
+ */
+class Daemon {
+    /** Frame kind ending a reply, followed by the exit code. */
+    static final byte END = 0;
+    /** Frame kind for standard output. */
+    static final byte OUT = 1;
+    /** Frame kind for standard error. */
+    static final byte ERR = 2;
+    /** Most arguments a request may have. */
+    static final int MAX_ARGS = 1 << 16;
+    /** Largest frame, in bytes; longer output is split across frames. */
+    static final int MAX_FRAME = 1 << 20;
+    /** Default idle timeout in seconds. */
+    private static final int DEFAULT_IDLE = 300;
+
+    /** True while this JVM is serving commands. */
+    private static boolean _serving;
+    /** Stamp of the cached files after the last command. */
+    private static String _stamp;
+
+    /** Thrown by Main.exit to end a command run by the daemon. */
+    static final class Exit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        /** The exit code. */
+        private final int _status;
+
+        /** An Exit with exit code STATUS. */
+        Exit(int status) {
+            super(null, null, false, false);
+            _status = status;
+        }
+
+        /** Return the exit code. */
+        int status() {
+            return _status;
+        }
+    }
+
+    /** Return true if this JVM is a daemon serving commands. */
+    static boolean serving() {
+        return _serving;
+    }
+
+    /** DAEMON COMMAND. Serve commands on DAEMON_SOCKET until idle. */
+    static void serve() {
+        SocketChannel other = connect();
+        if (_serving || other != null) {
+            System.out.println("A daemon is already running.");
+            close(other);
+            return;
+        }
+        Main.DAEMON_SOCKET.delete();
+        long idle = 1000L * Integer.getInteger("gitlet.idle", DEFAULT_IDLE);
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        Thread cleanup = new Thread(Main.DAEMON_SOCKET::delete);
+        try (ServerSocketChannel server =
+                 ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             Selector selector = Selector.open()) {
+            server.bind(address());
+            Runtime.getRuntime().addShutdownHook(cleanup);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            _serving = true;
+            _stamp = stamp();
+            while (selector.select(idle) > 0) {
+                selector.selectedKeys().clear();
+                SocketChannel client = server.accept();
+                if (client == null) {
+                    continue;
+                }
+                try (client) {
+                    handle(client);
+                } catch (IOException excp) {
+                    /* The client went away; serve the next one. */
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            _serving = false;
+            System.setOut(out);
+            System.setErr(err);
+            Main.DAEMON_SOCKET.delete();
+            try {
+                Runtime.getRuntime().removeShutdownHook(cleanup);
+            } catch (IllegalStateException excp) {
+                /* Already shutting down; the hook deletes the socket. */
+            }
+        }
+    }
+
+    /** Read one command from CLIENT, run it, and send back its output and
+     *  exit code. */
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(client)));
+        int argc = in.readInt();
+        if (argc < 0 || argc > MAX_ARGS) {
+            throw new IOException("bad request");
+        }
+        String[] args = new String[argc];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = in.readUTF();
+        }
+        DataOutputStream reply = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(client)));
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream cout = new PrintStream(new BufferedOutputStream(
+            new Frames(reply, OUT), STREAM_BUFFER));
+        PrintStream cerr = new PrintStream(new BufferedOutputStream(
+            new Frames(reply, ERR), STREAM_BUFFER));
+        int status;
+        System.setOut(cout);
+        System.setErr(cerr);
+        try {
+            status = run(args);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        cout.flush();
+        cerr.flush();
+        reply.writeByte(END);
+        reply.writeInt(status);
+        reply.flush();
+    }
+
+    /** Run the command ARGS as Main would, returning its exit code. A
+     *  command that throws, even an Error, fails alone with exit code 1
+     *  and leaves the daemon serving. */
+    private static int run(String[] args) {
+        if (!stamp().equals(_stamp)) {
+            forget();
+        }
+        try {
+            Main.main(args);
+            return 0;
+        } catch (Exit excp) {
+            return excp.status();
+        } catch (Throwable excp) {
+            System.err.print("Exception in thread \"main\" ");
+            excp.printStackTrace();
+            forget();
+            return 1;
+        } finally {
+            _stamp = stamp();
+        }
+    }
+
+    /** Drop everything cached from files another process may change. */
+    private static void forget() {
+        CommitIndex.reload();
+        CommitGraph.reload();
+        MessageIndex.reload();
+        PackFile.reload();
+        Tree.reload();
+    }
+
+    /** Return the identity, size and modification time of each file whose
+     *  contents are cached between commands. */
+    private static String stamp() {
+        StringBuilder result = new StringBuilder();
+        for (File f : new File[] {Main.COMMIT_INDEX, Main.COMMIT_GRAPH,
+                                  Main.COMMIT_GRAPH_LOG, Main.MESSAGES_FILE,
+                                  Main.PACK_DIR}) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(f.toPath(),
+                        BasicFileAttributes.class);
+                result.append(attrs.fileKey()).append(' ')
+                    .append(attrs.size()).append(' ')
+                    .append(attrs.lastModifiedTime().toMillis());
+            } catch (IOException excp) {
+                result.append('-');
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    /** Return a connection to the daemon of this repository, or null if
+     *  none is running. */
+    static SocketChannel connect() {
+        if (!Main.DAEMON_SOCKET.exists()) {
+            return null;
+        }
+        try {
+            return SocketChannel.open(address());
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Send command ARGS to DAEMON, copying its output to System.out and
+     *  System.err as it arrives. Returns the command's exit code. */
+    static int request(SocketChannel daemon, String... args)
+        throws IOException {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(daemon)));
+        out.writeInt(args.length);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+        out.flush();
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(daemon)));
+        while (true) {
+            byte kind = in.readByte();
+            if (kind == END) {
+                return in.readInt();
+            }
+            int len = in.readInt();
+            if ((kind != OUT && kind != ERR) || len < 0 || len > MAX_FRAME) {
+                throw new IOException("bad reply from the gitlet daemon");
+            }
+            byte[] data = new byte[len];
+            in.readFully(data);
+            PrintStream dest = kind == ERR ? System.err : System.out;
+            dest.write(data, 0, data.length);
+            dest.flush();
+        }
+    }
+
+    /** Return the address of DAEMON_SOCKET. */
+    private static UnixDomainSocketAddress address() {
+        return UnixDomainSocketAddress.of(Main.DAEMON_SOCKET.toPath());
+    }
+
+    /** Close CHANNEL, if not null, ignoring errors. */
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException excp) {
+                /* Ignore. */
+            }
+        }
+    }
+
+    /** An output stream sending what is written to it as frames of one
+     *  kind. */
+    private static class Frames extends OutputStream {
+        /** Where frames go. */
+        private final DataOutputStream _reply;
+        /** Kind of each frame. */
+        private final byte _kind;
+
+        /** A stream of frames of kind KIND written to REPLY. */
+        Frames(DataOutputStream reply, byte kind) {
+            _reply = reply;
+            _kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (_reply) {
+                while (len > 0) {
+                    int n = Math.min(len, MAX_FRAME);
+                    _reply.writeByte(_kind);
+                    _reply.writeInt(n);
+                    _reply.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+                _reply.flush();
+            }
+        }
+    }
+}
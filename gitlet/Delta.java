@@ -0,0 +1,115 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/** Binary deltas between two versions of a blob.
+ *
+ *  A delta is the target's length followed by a sequence of
+ *  instructions: COPY (offset, length) copies bytes from the base, and
+ *  INSERT (length, bytes) inserts literal bytes. Matches are found by
+ *  indexing every BLOCK-byte window of the base and extending each hit
+ *  forward as far as the bytes agree, so creating a delta is linear in
+ *  the sizes of base and target.
+ *  @author Truong Le
+ */
+class Delta {
+    /** Opcode copying a range of the base. */
+    private static final byte COPY = 0;
+    /** Opcode inserting literal bytes. */
+    private static final byte INSERT = 1;
+    /** Window size used to find matches. */
+    private static final int BLOCK = 16;
+
+    /** Return a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += 1) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(target.length);
+            int pending = 0;
+            int i = 0;
+            while (i < target.length) {
+                Integer at = i + BLOCK <= target.length
+                        ? blocks.get(hash(target, i)) : null;
+                int len = 0;
+                if (at != null) {
+                    while (at + len < base.length && i + len < target.length
+                            && base[at + len] == target[i + len]) {
+                        len += 1;
+                    }
+                }
+                if (len < BLOCK) {
+                    i += 1;
+                    continue;
+                }
+                insert(out, target, pending, i);
+                out.writeByte(COPY);
+                out.writeInt(at);
+                out.writeInt(len);
+                i += len;
+                pending = i;
+            }
+            insert(out, target, pending, target.length);
+            out.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Write an INSERT of TARGET[FROM..TO) to OUT, if non-empty. */
+    private static void insert(DataOutputStream out, byte[] target,
+                               int from, int to) throws IOException {
+        if (to > from) {
+            out.writeByte(INSERT);
+            out.writeInt(to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /** Return the hash of the BLOCK bytes of DATA starting at K. */
+    private static int hash(byte[] data, int k) {
+        int h = 1;
+        for (int i = k; i < k + BLOCK; i += 1) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    /** Return the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        try {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(delta));
+            byte[] result = new byte[in.readInt()];
+            int pos = 0;
+            while (pos < result.length) {
+                byte op = in.readByte();
+                if (op == COPY) {
+                    int at = in.readInt();
+                    int len = in.readInt();
+                    System.arraycopy(base, at, result, pos, len);
+                    pos += len;
+                } else if (op == INSERT) {
+                    int len = in.readInt();
+                    in.readFully(result, pos, len);
+                    pos += len;
+                } else {
+                    throw Utils.error("Corrupt delta.");
+                }
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Line-by-line differences between two texts.
+ *
+ *  Lines are interned to ints, so comparing two lines is one int
+ *  comparison. The common prefix and suffix are trimmed, lines found on
+ *  only one side are set aside as changed, and what is left goes to
+ *  Myers' O(ND) algorithm in its linear-space form: find the middle
+ *  snake of an optimal path by searching from both ends at once, then
+ *  recurse on either side of it. Memory is linear in the input. Time is
+ *  O((N + M) D) for D differences. Once D passes about sqrt(N + M) the
+ *  search settles for the furthest-reaching path found so far, so large,
+ *  very different inputs cost about O((N + M) ^ 1.5) per level rather
+ *  than O((N + M) ^ 2), at the price of a diff that may not be minimal.
+ *  @author Truong Le
+ */
+class Diff {
+    /** Lines of unified context around each change. */
+    static final int CONTEXT = 3;
+    /** Least number of differences after which a search stops looking
+     *  for an optimal path. */
+    private static final int MIN_COST_LIMIT = 256;
+    /** Marks a diagonal that no path of the current length reaches. */
+    private static final int NONE = Integer.MIN_VALUE;
+
+    /** The lines of the old text, each ending in "\n" unless it is a
+     *  last line without one. */
+    private final List<String> _old;
+    /** The lines of the new text. */
+    private final List<String> _new;
+    /** The interned lines of the old text. */
+    private final int[] _a;
+    /** The interned lines of the new text. */
+    private final int[] _b;
+    /** True for each line of the old text that is deleted. */
+    private final boolean[] _deleted;
+    /** True for each line of the new text that is inserted. */
+    private final boolean[] _inserted;
+
+    /** Number of differences after which a search stops looking for an
+     *  optimal path: about the square root of the input size, and at
+     *  least MIN_COST_LIMIT. */
+    private int _costLimit;
+    /** Forward and backward furthest-reaching paths, by diagonal. */
+    private int[] _vf, _vb;
+
+    /** The differences between the lines OLDLINES and NEWLINES. */
+    Diff(List<String> oldLines, List<String> newLines) {
+        _old = oldLines;
+        _new = newLines;
+        HashMap<String, Integer> ids = new HashMap<>();
+        _a = intern(oldLines, ids);
+        _b = intern(newLines, ids);
+        _deleted = new boolean[_a.length];
+        _inserted = new boolean[_b.length];
+        run();
+    }
+
+    /** Return the ids of LINES, giving new lines the next id in IDS. */
+    private static int[] intern(List<String> lines,
+                                HashMap<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /** Return TEXT split into lines, each keeping its "\n". */
+    static List<String> lines(byte[] text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        String s = new String(text, StandardCharsets.UTF_8);
+        int start = 0;
+        while (start < s.length()) {
+            int end = s.indexOf('\n', start);
+            end = end < 0 ? s.length() : end + 1;
+            result.add(s.substring(start, end));
+            start = end;
+        }
+        return result;
+    }
+
+    /** Return true if TEXT looks binary: it has a NUL byte. */
+    static boolean isBinary(byte[] text) {
+        if (text != null) {
+            for (byte b : text) {
+                if (b == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Mark the deleted and inserted lines. Lines that occur on only one
+     *  side cannot be matched and are marked at once; the rest are
+     *  compared with the middle-snake search. */
+    private void run() {
+        int[] countA = new int[_a.length + _b.length];
+        int[] countB = new int[countA.length];
+        for (int id : _a) {
+            countA[id] += 1;
+        }
+        for (int id : _b) {
+            countB[id] += 1;
+        }
+        int[] mapA = keep(_a, countB, _deleted);
+        int[] mapB = keep(_b, countA, _inserted);
+        int[] a = new int[mapA.length];
+        int[] b = new int[mapB.length];
+        for (int i = 0; i < a.length; i += 1) {
+            a[i] = _a[mapA[i]];
+        }
+        for (int j = 0; j < b.length; j += 1) {
+            b[j] = _b[mapB[j]];
+        }
+        _costLimit = Math.max(MIN_COST_LIMIT,
+            (int) Math.sqrt(a.length + b.length));
+        int size = 2 * (a.length + b.length) + 3;
+        _vf = new int[size];
+        _vb = new int[size];
+        boolean[] del = new boolean[a.length];
+        boolean[] ins = new boolean[b.length];
+        compare(a, b, 0, a.length, 0, b.length, del, ins);
+        for (int i = 0; i < a.length; i += 1) {
+            _deleted[mapA[i]] = del[i];
+        }
+        for (int j = 0; j < b.length; j += 1) {
+            _inserted[mapB[j]] = ins[j];
+        }
+        _vf = _vb = null;
+    }
+
+    /** Return the positions of the lines of SEQ whose count in the other
+     *  text, OTHERCOUNT, is not zero, marking the others in CHANGED. */
+    private static int[] keep(int[] seq, int[] otherCount,
+                              boolean[] changed) {
+        int n = 0;
+        for (int i = 0; i < seq.length; i += 1) {
+            if (otherCount[seq[i]] == 0) {
+                changed[i] = true;
+            } else {
+                n += 1;
+            }
+        }
+        int[] result = new int[n];
+        n = 0;
+        for (int i = 0; i < seq.length; i += 1) {
+            if (!changed[i]) {
+                result[n] = i;
+                n += 1;
+            }
+        }
+        return result;
+    }
+
+    /** Mark in DEL and INS a shortest edit script from A[ALO, AHI) to
+     *  B[BLO, BHI). */
+    private void compare(int[] a, int[] b, int aLo, int aHi, int bLo,
+                         int bHi, boolean[] del, boolean[] ins) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            for (int i = aLo; i < aHi; i += 1) {
+                del[i] = true;
+            }
+            for (int j = bLo; j < bHi; j += 1) {
+                ins[j] = true;
+            }
+            return;
+        }
+        int[] snake = middleSnake(a, b, aLo, aHi, bLo, bHi);
+        compare(a, b, aLo, snake[0], bLo, snake[1], del, ins);
+        compare(a, b, snake[2], aHi, snake[3], bHi, del, ins);
+    }
+
+    /** Return {x0, y0, x1, y1}: a diagonal run from (x0, y0) to (x1, y1)
+     *  on a shortest path from (ALO, BLO) to (AHI, BHI) through A and B,
+     *  splitting the problem into two smaller ones. The first line of
+     *  each range must differ, as must the last. */
+    private int[] middleSnake(int[] a, int[] b, int aLo, int aHi, int bLo,
+                              int bHi) {
+        int n = aHi - aLo, m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int off = n + m + 1;
+        for (int d = 0; d <= (n + m + 1) / 2; d += 1) {
+            if (d > _costLimit) {
+                return furthest(aLo, bLo, n, m, d - 1, off);
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = step(_vf, off, k, d, n, m);
+                _vf[off + k] = x;
+                if (x == NONE) {
+                    continue;
+                }
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                _vf[off + k] = x;
+                int kb = delta - k;
+                if (odd && kb >= -(d - 1) && kb <= d - 1
+                        && _vb[off + kb] != NONE && x + _vb[off + kb] >= n) {
+                    return new int[] {aLo + x0, bLo + y0, aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = step(_vb, off, k, d, n, m);
+                _vb[off + k] = x;
+                if (x == NONE) {
+                    continue;
+                }
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m
+                       && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                _vb[off + k] = x;
+                int kf = delta - k;
+                if (!odd && kf >= -d && kf <= d
+                        && _vf[off + kf] != NONE && _vf[off + kf] + x >= n) {
+                    return new int[] {aHi - x, bHi - y, aHi - x0, bHi - y0};
+                }
+            }
+        }
+        throw Utils.error("diff: no middle snake");
+    }
+
+    /** Return the furthest x on diagonal K that one more edit reaches
+     *  from the paths of D - 1 edits in V (offset by OFF), staying inside
+     *  an N by M grid, or NONE. */
+    private static int step(int[] v, int off, int k, int d, int n, int m) {
+        if (d == 0) {
+            return 0;
+        }
+        int best = NONE;
+        if (k != -d && v[off + k - 1] != NONE) {
+            int x = v[off + k - 1] + 1;
+            if (x <= n && x - k <= m) {
+                best = x;
+            }
+        }
+        if (k != d && v[off + k + 1] != NONE) {
+            int x = v[off + k + 1];
+            if (x > best && x <= n && x - k <= m) {
+                best = x;
+            }
+        }
+        return best;
+    }
+
+    /** Return an empty snake at the end of the forward path after D
+     *  steps that has come furthest, in a search of N by M lines from
+     *  (ALO, BLO) with diagonal offset OFF. Both halves it leaves are
+     *  smaller than the whole. */
+    private int[] furthest(int aLo, int bLo, int n, int m, int d, int off) {
+        int bestX = 0, bestY = 0;
+        for (int k = -d; k <= d; k += 2) {
+            int x = _vf[off + k];
+            if (x != NONE && 2 * x - k > bestX + bestY
+                    && (x < n || x - k < m)) {
+                bestX = x;
+                bestY = x - k;
+            }
+        }
+        if (bestX + bestY == 0) {
+            bestX = 1;
+        }
+        return new int[] {aLo + bestX, bLo + bestY, aLo + bestX,
+                          bLo + bestY};
+    }
+
+    /** Return, for each line of the old text, the index of the line of
+     *  the new text it is kept as, or -1 if it is deleted. */
+    int[] matches() {
+        int[] result = new int[_a.length];
+        int j = 0;
+        for (int i = 0; i < _a.length; i += 1) {
+            if (_deleted[i]) {
+                result[i] = -1;
+                continue;
+            }
+            while (_inserted[j]) {
+                j += 1;
+            }
+            result[i] = j;
+            j += 1;
+        }
+        return result;
+    }
+
+    /** Return true if there are no differences. */
+    boolean isEmpty() {
+        for (boolean d : _deleted) {
+            if (d) {
+                return false;
+            }
+        }
+        for (boolean i : _inserted) {
+            if (i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Print the differences in unified format, with CONTEXT lines of
+     *  context, as hunks headed "@@ -START,COUNT +START,COUNT @@". */
+    void printHunks() {
+        int n = _a.length, m = _b.length;
+        int i = 0, j = 0;
+        while (true) {
+            while (i < n && j < m && !_deleted[i] && !_inserted[j]) {
+                i += 1;
+                j += 1;
+            }
+            if (i == n && j == m) {
+                return;
+            }
+            int i0 = Math.max(0, i - CONTEXT), j0 = Math.max(0, j - CONTEXT);
+            int i1 = i, j1 = j;
+            while (true) {
+                while (i1 < n && _deleted[i1]) {
+                    i1 += 1;
+                }
+                while (j1 < m && _inserted[j1]) {
+                    j1 += 1;
+                }
+                int same = 0;
+                while (i1 + same < n && j1 + same < m
+                       && !_deleted[i1 + same] && !_inserted[j1 + same]) {
+                    same += 1;
+                }
+                boolean atEnd = i1 + same == n && j1 + same == m;
+                if (atEnd || same > 2 * CONTEXT) {
+                    int tail = Math.min(same, CONTEXT);
+                    printHunk(i0, i1 + tail, j0, j1 + tail);
+                    i = i1 + same;
+                    j = j1 + same;
+                    break;
+                }
+                i1 += same;
+                j1 += same;
+            }
+        }
+    }
+
+    /** Print the hunk covering old lines [I0, I1) and new lines
+     *  [J0, J1). */
+    private void printHunk(int i0, int i1, int j0, int j1) {
+        System.out.println("@@ -" + range(i0, i1) + " +" + range(j0, j1)
+                           + " @@");
+        int i = i0, j = j0;
+        while (i < i1 || j < j1) {
+            if (i < i1 && _deleted[i]) {
+                printLine('-', _old.get(i));
+                i += 1;
+            } else if (j < j1 && _inserted[j]) {
+                printLine('+', _new.get(j));
+                j += 1;
+            } else {
+                printLine(' ', _old.get(i));
+                i += 1;
+                j += 1;
+            }
+        }
+    }
+
+    /** Return the unified-format range of lines [LO, HI). */
+    private static String range(int lo, int hi) {
+        int start = hi == lo ? lo : lo + 1;
+        return hi - lo == 1 ? Integer.toString(start)
+            : start + "," + (hi - lo);
+    }
+
+    /** Print LINE with PREFIX, noting a missing final newline. */
+    private static void printLine(char prefix, String line) {
+        System.out.print(prefix);
+        System.out.print(line);
+        if (!line.endsWith("\n")) {
+            System.out.println();
+            System.out.println("\\ No newline at end of file");
+        }
+    }
+
+    /** Print the differences between OLDTEXT and NEWTEXT, the contents of
+     *  PATH, with a header; either may be null for a missing file.
+     *  Prints nothing if they are the same. */
+    static void print(String path, byte[] oldText, byte[] newText) {
+        if (Arrays.equals(oldText, newText)) {
+            return;
+        }
+        System.out.println("diff --git a/" + path + " b/" + path);
+        if (isBinary(oldText) || isBinary(newText)) {
+            System.out.println("Binary files "
+                               + (oldText == null ? "/dev/null" : "a/" + path)
+                               + " and "
+                               + (newText == null ? "/dev/null" : "b/" + path)
+                               + " differ");
+            return;
+        }
+        System.out.println("--- " + (oldText == null ? "/dev/null"
+                                     : "a/" + path));
+        System.out.println("+++ " + (newText == null ? "/dev/null"
+                                     : "b/" + path));
+        new Diff(lines(oldText), lines(newText)).printHunks();
+    }
+}
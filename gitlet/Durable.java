@@ -0,0 +1,244 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import static gitlet.Utils.*;
+
+/** Crash-safe writes to the repository.
+ *
+ *  Nothing under .gitlet is overwritten in place: each file is written
+ *  to a temporary file in GITLIT_DIR and renamed over its target, so
+ *  after a crash it holds either its old or its new contents.
+ *
+ *  Making writes durable is batched per command. Objects, and other
+ *  files nothing refers to yet, are renamed into place and remembered;
+ *  sync forces them all together, in parallel, and then each directory
+ *  they went into once. Refs and the index refer to objects, so replace
+ *  syncs the pending objects before writing one of them and then forces
+ *  it and its directory at once. Each ref update is first appended to
+ *  REF_JOURNAL with the ref's old and new values, and forced, before the
+ *  ref is replaced; a command that died in between leaves the ref at
+ *  its old value, and the next command rolls it forward with
+ *  recoverRefs. Main syncs whatever is still pending when a command
+ *  ends. Setting gitlet.fsync to false
+ *  skips the forcing but keeps the atomic renames.
+ *  @author Truong Le
+ */
+class Durable {
+    /** True unless gitlet.fsync is false. */
+    private static final boolean FSYNC =
+        !"false".equals(System.getProperty("gitlet.fsync"));
+    /** Size past which REF_JOURNAL is moved aside to REF_JOURNAL_OLD. */
+    static final long JOURNAL_LIMIT = 1 << 20;
+    /** Most bytes read from the end of REF_JOURNAL by recoverRefs. */
+    private static final int JOURNAL_TAIL = 4096;
+
+    /** Files installed since the last sync. */
+    private static final LinkedHashSet<File> _files = new LinkedHashSet<>();
+    /** Directories those files were installed into. */
+    private static final LinkedHashSet<File> _dirs = new LinkedHashSet<>();
+
+    /** Return a new empty temporary file in GITLIT_DIR, to be installed
+     *  over its target with install. */
+    static File temp() {
+        try {
+            return Files.createTempFile(Main.GITLIT_DIR.toPath(), "tmp_", "")
+                .toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Atomically rename TMP to TARGET, to be made durable by the next
+     *  sync. */
+    static void install(File tmp, File target) {
+        try {
+            Files.move(tmp.toPath(), target.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        synchronized (_files) {
+            _files.add(target);
+            _dirs.add(target.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /** Atomically replace TARGET with CONTENTS, to be made durable by the
+     *  next sync. */
+    static void write(File target, byte[] contents) {
+        File tmp = temp();
+        writeAll(tmp, contents, false);
+        install(tmp, target);
+    }
+
+    /** Atomically and durably replace TARGET with CONTENTS. Pending files
+     *  are synced first, so TARGET never refers to an object that a crash
+     *  could still lose. */
+    static void replace(File target, byte[] contents) {
+        sync();
+        File tmp = temp();
+        writeAll(tmp, contents, FSYNC);
+        try {
+            Files.move(tmp.toPath(), target.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (FSYNC) {
+            force(target.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /** Point REF, HEAD or a branch, at VALUE, journaling the change. */
+    static void updateRef(File ref, String value) {
+        sync();
+        journal(ref, value);
+        replace(ref, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Delete REF, journaling the change. */
+    static void deleteRef(File ref) {
+        journal(ref, "-");
+        ref.delete();
+        if (FSYNC) {
+            force(ref.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /** Finish the ref update of the last entry in REF_JOURNAL, if the
+     *  command that journaled it died before making it. Refs are updated
+     *  one at a time, each journaled just before, so only the last entry
+     *  can be unfinished, and only if its ref still holds the old value.
+     *  An entry cut short by the crash was never acted on and is
+     *  ignored. */
+    static void recoverRefs() {
+        if (!Main.REF_JOURNAL.isFile()) {
+            return;
+        }
+        String tail;
+        try (RandomAccessFile in =
+                 new RandomAccessFile(Main.REF_JOURNAL, "r")) {
+            int n = (int) Math.min(in.length(), JOURNAL_TAIL);
+            byte[] bytes = new byte[n];
+            in.seek(in.length() - n);
+            in.readFully(bytes);
+            tail = new String(bytes, StandardCharsets.UTF_8);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!tail.endsWith("\n")) {
+            return;
+        }
+        String[] lines = tail.trim().split("\n");
+        String[] entry = lines[lines.length - 1].trim().split(" ");
+        if (entry.length != 4) {
+            return;
+        }
+        File ref = join(Main.GITLIT_DIR, entry[0]);
+        String current = ref.isFile() ? readContentsAsString(ref) : "-";
+        if (!current.equals(entry[1]) || current.equals(entry[2])) {
+            return;
+        }
+        if (entry[2].equals("-")) {
+            ref.delete();
+            if (FSYNC) {
+                force(ref.getAbsoluteFile().getParentFile());
+            }
+        } else {
+            replace(ref, entry[2].getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Return the files installed since the last sync, in order. */
+    static List<File> pending() {
+        synchronized (_files) {
+            return new ArrayList<>(_files);
+        }
+    }
+
+    /** Force every file installed since the last sync to disk, in
+     *  parallel, and then each directory they were installed into. */
+    static void sync() {
+        List<File> files;
+        List<File> dirs;
+        synchronized (_files) {
+            files = new ArrayList<>(_files);
+            dirs = new ArrayList<>(_dirs);
+            _files.clear();
+            _dirs.clear();
+        }
+        if (!FSYNC) {
+            return;
+        }
+        files.parallelStream().filter(File::isFile).forEach(Durable::force);
+        dirs.forEach(Durable::force);
+    }
+
+    /** Append to REF_JOURNAL that REF changes to VALUE, with its old value
+     *  and the time, and force the entry to disk. */
+    private static void journal(File ref, String value) {
+        String old = ref.isFile() ? readContentsAsString(ref) : "-";
+        String name = Main.GITLIT_DIR.toPath().relativize(ref.toPath())
+            .toString();
+        String entry = String.format("%s %s %s %d%n", name, old, value,
+                                     System.currentTimeMillis());
+        if (Main.REF_JOURNAL.length() > JOURNAL_LIMIT) {
+            Main.REF_JOURNAL.renameTo(Main.REF_JOURNAL_OLD);
+        }
+        try (FileChannel ch = FileChannel.open(Main.REF_JOURNAL.toPath(),
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.APPEND)) {
+            ByteBuffer buf =
+                ByteBuffer.wrap(entry.getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            if (FSYNC) {
+                ch.force(false);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write CONTENTS to FILE, forcing them to disk if FORCE. */
+    private static void writeAll(File file, byte[] contents, boolean force) {
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                 StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(contents);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            if (force) {
+                ch.force(true);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Force FILE, which may be a directory, to disk. Directories that
+     *  the platform cannot open are skipped. */
+    private static void force(File file) {
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                 StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+import java.util.function.LongBinaryOperator;
+
+/** An immutable compressed bitmap, run-length encoded by 64-bit words in
+ *  the manner of EWAH.
+ *
+ *  The bitmap is a sequence of markers, each followed by its literal
+ *  words. A marker holds a run bit in bit 63, a run length in bits 32-62
+ *  and a literal count in bits 0-31: it stands for that many words of all
+ *  zeros or all ones, followed by the given number of literal words
+ *  copied as they are. Long stretches of set or clear bits thus cost one
+ *  word, and and, or and andNot work run by run on the compressed forms,
+ *  so their cost follows the compressed sizes rather than the number of
+ *  bits.
+ *  @author Truong Le
+ */
+class Ewah {
+    /** Longest run one marker can hold. */
+    private static final long MAX_RUN = 0x7fffffffL;
+    /** Most literal words one marker can hold. */
+    private static final int MAX_LITERALS = Integer.MAX_VALUE;
+    /** The empty bitmap. */
+    static final Ewah EMPTY = new Ewah();
+
+    /** Markers and literal words; only the first _used are meaningful. */
+    private long[] _words;
+    /** Number of words of _words in use. */
+    private int _used;
+    /** Position in _words of the last marker. */
+    private int _last;
+    /** Number of uncompressed words this bitmap stands for. */
+    private long _length;
+
+    /** A bitmap with no bits, to be added to while it is being built. */
+    private Ewah() {
+        _words = new long[4];
+        _used = 1;
+    }
+
+    /** Return a bitmap with the same bits as BITS. */
+    static Ewah of(BitSet bits) {
+        Ewah result = new Ewah();
+        for (long word : bits.toLongArray()) {
+            result.addWord(word);
+        }
+        return result;
+    }
+
+    /** Return the bits of this bitmap that are also in OTHER. */
+    Ewah and(Ewah other) {
+        return combine(other, (a, b) -> a & b);
+    }
+
+    /** Return the bits of this bitmap and those of OTHER. */
+    Ewah or(Ewah other) {
+        return combine(other, (a, b) -> a | b);
+    }
+
+    /** Return the bits of this bitmap that are not in OTHER. */
+    Ewah andNot(Ewah other) {
+        return combine(other, (a, b) -> a & ~b);
+    }
+
+    /** Return the number of bits set. */
+    int cardinality() {
+        long result = 0;
+        int pos = 0;
+        while (pos < _used) {
+            long marker = _words[pos];
+            if (runBit(marker)) {
+                result += runLength(marker) * Long.SIZE;
+            }
+            for (int i = 1; i <= literals(marker); i += 1) {
+                result += Long.bitCount(_words[pos + i]);
+            }
+            pos += 1 + literals(marker);
+        }
+        return (int) result;
+    }
+
+    /** Call ACTION with the position of each bit set, in increasing
+     *  order. */
+    void forEach(IntConsumer action) {
+        long word = 0;
+        int pos = 0;
+        while (pos < _used) {
+            long marker = _words[pos];
+            long run = runLength(marker);
+            if (runBit(marker)) {
+                for (long k = word * Long.SIZE;
+                     k < (word + run) * Long.SIZE; k += 1) {
+                    action.accept((int) k);
+                }
+            }
+            word += run;
+            for (int i = 1; i <= literals(marker); i += 1) {
+                long bits = _words[pos + i];
+                while (bits != 0) {
+                    action.accept((int) (word * Long.SIZE
+                                         + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+                word += 1;
+            }
+            pos += 1 + literals(marker);
+        }
+    }
+
+    /** Return the bits of this bitmap as a BitSet. */
+    BitSet toBitSet() {
+        BitSet result = new BitSet();
+        long word = 0;
+        int pos = 0;
+        while (pos < _used) {
+            long marker = _words[pos];
+            long run = runLength(marker);
+            if (runBit(marker)) {
+                result.set((int) (word * Long.SIZE),
+                           (int) ((word + run) * Long.SIZE));
+            }
+            word += run;
+            for (int i = 1; i <= literals(marker); i += 1) {
+                long bits = _words[pos + i];
+                while (bits != 0) {
+                    result.set((int) (word * Long.SIZE
+                                      + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+                word += 1;
+            }
+            pos += 1 + literals(marker);
+        }
+        return result;
+    }
+
+    /** Return the number of words this bitmap takes when written. */
+    int compressedWords() {
+        return _used;
+    }
+
+    /** Write this bitmap to OUT: its uncompressed length in words, the
+     *  number of compressed words and then those words. */
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(_length);
+        out.writeInt(_used);
+        for (int i = 0; i < _used; i += 1) {
+            out.writeLong(_words[i]);
+        }
+    }
+
+    /** Return a bitmap read from IN, as written by write. */
+    static Ewah read(DataInputStream in) throws IOException {
+        Ewah result = new Ewah();
+        result._length = in.readLong();
+        result._used = in.readInt();
+        result._words = new long[Math.max(result._used, 1)];
+        for (int i = 0; i < result._used; i += 1) {
+            result._words[i] = in.readLong();
+        }
+        int pos = 0;
+        while (pos < result._used) {
+            result._last = pos;
+            pos += 1 + literals(result._words[pos]);
+        }
+        if (pos != result._used) {
+            throw Utils.error("Corrupt bitmap");
+        }
+        return result;
+    }
+
+    /** Return the result of applying OP word by word to this bitmap and
+     *  OTHER, the shorter one being padded with zeros. OP must map clean
+     *  words (all zeros or all ones) to clean words. */
+    private Ewah combine(Ewah other, LongBinaryOperator op) {
+        Ewah result = new Ewah();
+        Cursor a = new Cursor(this), b = new Cursor(other);
+        while (!a.done() || !b.done()) {
+            if (a.inRun() && b.inRun()) {
+                long n = Math.min(a.run(), b.run());
+                long word = op.applyAsLong(a.runWord(), b.runWord());
+                result.addRun(word != 0, n);
+                a.skip(n);
+                b.skip(n);
+            } else {
+                result.addWord(op.applyAsLong(a.next(), b.next()));
+            }
+        }
+        return result;
+    }
+
+    /** Append the uncompressed word WORD. */
+    private void addWord(long word) {
+        if (word == 0 || word == -1) {
+            addRun(word != 0, 1);
+            return;
+        }
+        if (literals(_words[_last]) == MAX_LITERALS) {
+            newMarker();
+        }
+        append(word);
+        _words[_last] += 1;
+        _length += 1;
+    }
+
+    /** Append COUNT words of all ones if BIT, else of all zeros. */
+    private void addRun(boolean bit, long count) {
+        _length += count;
+        while (count > 0) {
+            long marker = _words[_last];
+            long run = runLength(marker);
+            if (literals(marker) != 0 || run == MAX_RUN
+                    || (run != 0 && runBit(marker) != bit)) {
+                newMarker();
+                continue;
+            }
+            long take = Math.min(count, MAX_RUN - run);
+            _words[_last] = (bit ? Long.MIN_VALUE : 0)
+                | ((run + take) << 32);
+            count -= take;
+        }
+    }
+
+    /** Start a new, empty marker. */
+    private void newMarker() {
+        _last = _used;
+        append(0);
+    }
+
+    /** Append WORD to _words. */
+    private void append(long word) {
+        if (_used == _words.length) {
+            _words = Arrays.copyOf(_words, 2 * _used);
+        }
+        _words[_used] = word;
+        _used += 1;
+    }
+
+    /** Return the run bit of MARKER. */
+    private static boolean runBit(long marker) {
+        return marker < 0;
+    }
+
+    /** Return the run length of MARKER. */
+    private static long runLength(long marker) {
+        return (marker >>> 32) & MAX_RUN;
+    }
+
+    /** Return the number of literal words after MARKER. */
+    private static int literals(long marker) {
+        return (int) (marker & 0xffffffffL);
+    }
+
+    /** Reads the uncompressed words of a bitmap in order, a run at a time
+     *  where it can. Past the end it reads zeros without end. */
+    private static class Cursor {
+        /** The bitmap read. */
+        private final Ewah _bitmap;
+        /** Position of the next marker to load. */
+        private int _pos;
+        /** Words left in the current run. */
+        private long _run;
+        /** True if the current run is of ones. */
+        private boolean _bit;
+        /** Literal words left after the current run. */
+        private int _literals;
+
+        /** A cursor at the start of BITMAP. */
+        Cursor(Ewah bitmap) {
+            _bitmap = bitmap;
+            load();
+        }
+
+        /** Load markers until one with words left, or the end. */
+        private void load() {
+            while (_run == 0 && _literals == 0 && _pos < _bitmap._used) {
+                long marker = _bitmap._words[_pos];
+                _run = runLength(marker);
+                _bit = runBit(marker);
+                _literals = literals(marker);
+                _pos += 1;
+            }
+        }
+
+        /** Return true if every word has been read. */
+        boolean done() {
+            return _run == 0 && _literals == 0;
+        }
+
+        /** Return true if the next word is part of a run, which includes
+         *  the zeros past the end. */
+        boolean inRun() {
+            return _run > 0 || _literals == 0;
+        }
+
+        /** Return the number of words left in the current run. */
+        long run() {
+            return done() ? Long.MAX_VALUE : _run;
+        }
+
+        /** Return the word the current run repeats. */
+        long runWord() {
+            return _run > 0 && _bit ? -1 : 0;
+        }
+
+        /** Skip N words of the current run. */
+        void skip(long n) {
+            if (!done()) {
+                _run -= n;
+                load();
+            }
+        }
+
+        /** Read one word. */
+        long next() {
+            long result;
+            if (_run > 0) {
+                result = runWord();
+                _run -= 1;
+            } else if (_literals > 0) {
+                result = _bitmap._words[_pos];
+                _pos += 1;
+                _literals -= 1;
+            } else {
+                return 0;
+            }
+            load();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import static gitlet.Utils.*;
+
+/** Bookkeeping for garbage collection.
+ *
+ *  What gc keeps is worked out by Bitmaps, as the objects reachable from
+ *  the branch heads and the staging area. This class counts the loose
+ *  objects written by a command with wroteLoose, sums the counts across
+ *  commands in LOOSE_COUNT (see GitlitController.autoGc), and clears out
+ *  temporary files left behind by commands that died.
+ *  @author Truong Le
+ */
+class Gc {
+    /** Loose objects written by this process and not yet counted in
+     *  LOOSE_COUNT. */
+    private static final AtomicInteger _loose = new AtomicInteger();
+
+    /** Note that this process wrote a loose object. */
+    static void wroteLoose() {
+        _loose.incrementAndGet();
+    }
+
+    /** Add the loose objects written since the last call to LOOSE_COUNT,
+     *  returning the new total. */
+    static int countLoose() {
+        int wrote = _loose.getAndSet(0);
+        int total = 0;
+        if (Main.LOOSE_COUNT.isFile()) {
+            try {
+                total = Integer.parseInt(readContentsAsString(
+                        Main.LOOSE_COUNT).trim());
+            } catch (NumberFormatException excp) {
+                total = 0;
+            }
+        }
+        if (wrote > 0) {
+            total += wrote;
+            Durable.write(Main.LOOSE_COUNT,
+                          Integer.toString(total)
+                              .getBytes(StandardCharsets.UTF_8));
+        }
+        return total;
+    }
+
+    /** Delete temporary files left in GITLIT_DIR by commands that died
+     *  more than MAXAGE milliseconds ago. */
+    static void deleteStaleTemps(long maxAge) {
+        File[] files = Main.GITLIT_DIR.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - maxAge;
+        for (File f : files) {
+            if (f.isFile() && f.getName().startsWith("tmp_")
+                    && f.lastModified() < cutoff) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -1,135 +1,670 @@
 package gitlet;
 
 import java.io.File;
-import java.io.Serializable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.UnaryOperator;
+import java.nio.charset.StandardCharsets;
 import static gitlet.Utils.*;
 
 
 /**
+ * Repository state lives in small separate files under .gitlet: HEAD
+ * names the current branch, BRANCHES_DIR holds one file per branch with
+ * its head commit SHA, and INDEX_FILE holds the staging area. Each
+ * command loads only the pieces it touches.
  * @author Truong Le
  */
-public class GitlitController implements Serializable {
-    /** All commitsID (SHA). */
-    private ArrayList<Commit> _commits;
-    /** All branches Name (key) and its Commit. */
-    private HashMap<String, Commit> _branches;
-    /** Current Stage of gitlit. */
+public class GitlitController {
+    /** Number of loose objects past which autoGc runs gc. */
+    static final int GC_AUTO = 6700;
+    /** Size in bytes past which packing leaves a blob loose. */
+    static final long BIG_BLOB = 32L << 20;
+    /** Age in milliseconds past which gc deletes temporary files. */
+    static final long STALE_TEMP_AGE = 60 * 60 * 1000;
+
+    /** Current Stage of gitlit, loaded lazily from INDEX_FILE. */
     private Stage _stage;
+    /** True if _stage was modified and must be written back. */
+    private boolean _stageChanged;
     /** Name of current branch. */
     private String _currBranch;
     /** SHA of current head commit. */
     private String _headSHA;
 
-    /** Version Control System. */
+    /** Load the Version Control System in the CWD. */
     public GitlitController() {
-        _commits = new ArrayList<>();
-        _branches = new HashMap<String, Commit>();
-        _stage = new Stage();
-        _currBranch = "master";
-
+        _currBranch = readContentsAsString(Main.HEAD_FILE);
+        _headSHA = readBranch(_currBranch);
+    }
 
-        Commit initial = new Commit("initial commit", null,
-                new HashMap<String, String>());
-        _stage.setHead(initial);
-        _commits.add(initial);
+    /** Create a new repository with only the initial commit. Assumes the
+     * .gitlet directories already exist.
+     * @return the Gitlit Controller of the new repository. */
+    public static GitlitController init() {
+        Commit initial = new Commit("initial commit", null, Tree.empty());
         saveCommitToGitDir(initial);
-        _branches.put(_currBranch, initial);
+        MessageIndex.rebuild();
+        writeBranch("master", initial.getCommitSHA());
+        Durable.updateRef(Main.HEAD_FILE, "master");
+
+        GitlitController gitlit = new GitlitController();
+        gitlit._stage = new Stage();
+        gitlit._stage.setHead(initial);
+        gitlit._stageChanged = true;
+        return gitlit;
+    }
+
+    /** Return the stage, reading INDEX_FILE on first use. Callers that
+     * modify it must call stageChanged(). */
+    private Stage stage() {
+        if (_stage == null) {
+            _stage = Stage.fromBytes(readContents(Main.INDEX_FILE));
+            _stage.setHead(getCommitInGitDir(_headSHA));
+        }
+        return _stage;
+    }
+
+    /** Mark the stage as modified, returning it. */
+    private Stage stageChanged() {
+        _stageChanged = true;
+        return stage();
+    }
 
+    /** Write back whatever this command modified. */
+    public void save() {
+        if (_stageChanged || (_stage != null && _stage.statCacheChanged())) {
+            Durable.replace(Main.INDEX_FILE, _stage.toBytes());
+        }
+    }
+
+    /** Return the head commit SHA of branch BRANCHNAME, or null if
+     * there is no such branch. */
+    public static String readBranch(String branchName) {
+        File f = join(Main.BRANCHES_DIR, branchName);
+        if (!f.isFile()) {
+            return null;
+        }
+        return readContentsAsString(f);
+    }
+
+    /** Point branch BRANCHNAME at the commit COMMITSHA. */
+    public static void writeBranch(String branchName, String commitSHA) {
+        Durable.updateRef(join(Main.BRANCHES_DIR, branchName), commitSHA);
+    }
 
-        _headSHA = sha1(serialize(initial));
-        saveBranchToGitDir(_headSHA);
+    /** Return the names of all branches. */
+    public static List<String> branchNames() {
+        return plainFilenamesIn(Main.BRANCHES_DIR);
     }
 
-    /** Get commit C from COMMIT_DIR.
+    /** Return the head commit SHAs of all branches. */
+    public static List<String> branchHeads() {
+        List<String> result = new ArrayList<>();
+        for (String branchName : branchNames()) {
+            result.add(readBranch(branchName));
+        }
+        return result;
+    }
+
+    /** Return the SHAs of all commits ever made, packed or loose, in
+     * sorted order. */
+    public static List<String> allCommitSHAs() {
+        TreeSet<String> result = new TreeSet<>(PackFile.list(PackFile.COMMIT));
+        result.addAll(plainFilenamesIn(Main.COMMIT_DIR));
+        return new ArrayList<>(result);
+    }
+
+    /** Set the current branch to BRANCHNAME, whose head is COMMITSHA. */
+    private void setCurrentBranch(String branchName, String commitSHA) {
+        _currBranch = branchName;
+        _headSHA = commitSHA;
+        Durable.updateRef(Main.HEAD_FILE, branchName);
+    }
+
+    /** Move the current branch and head to COMMITSHA. */
+    private void setHead(String commitSHA) {
+        _headSHA = commitSHA;
+        writeBranch(_currBranch, commitSHA);
+    }
+
+    /** Get commit C from the packs or COMMIT_DIR.
      * @param commitSHA the commit ID to get COMMIT: each SHA is unique.
      * @return the commit with the same SHA. */
     public static Commit getCommitInGitDir(String commitSHA) {
+        byte[] packed = PackFile.read(commitSHA);
+        if (packed != null) {
+            return Commit.fromBytes(packed);
+        }
         File f = new File(Main.COMMIT_DIR.getPath() + "/" + commitSHA);
-        return readObject(f, Commit.class);
+        return Commit.fromBytes(Compression.readAll(f));
+    }
+
+    /** Return true if commit COMMITSHA exists, packed or loose. */
+    public static boolean hasCommitInGitDir(String commitSHA) {
+        return PackFile.contains(commitSHA)
+                || join(Main.COMMIT_DIR, commitSHA).isFile();
     }
     /** Save commit to COMMIT_DIR.
      * @param c the commit to be saved. */
     public static void saveCommitToGitDir(Commit c) {
-        String commitSHA =  sha1(serialize(c));
+        String commitSHA = c.getCommitSHA();
         File f = new File(Main.COMMIT_DIR.getPath() + "/" + commitSHA);
-        writeObject(f, c);
+        Compression.write(f, c.toBytes());
     }
 
-    /** Get blob contents from BLOB_DIR.
+    /** Get blob contents from the packs or BLOB_DIR.
      * @param blobSHA the SHA Code of blob
      * @return the contents of blob file. */
     public static String getBlobInGitDir(String blobSHA) {
-        File f = new File(Main.BLOBS_DIR + "/" + blobSHA);
-        return readContentsAsString(f);
+        return new String(getBlobBytesInGitDir(blobSHA),
+                StandardCharsets.UTF_8);
     }
-    /** Save BLOBS to GITDIR.
+
+    /** Get blob contents from the packs or BLOB_DIR.
+     * @param blobSHA the SHA Code of blob
+     * @return the contents of blob file, or null if there is none. */
+    public static byte[] getBlobBytesInGitDir(String blobSHA) {
+        if (blobSHA == null) {
+            return null;
+        }
+        byte[] packed = PackFile.read(blobSHA);
+        if (packed != null) {
+            return packed;
+        }
+        File f = join(Main.BLOBS_DIR, blobSHA);
+        if (!f.isFile()) {
+            return null;
+        }
+        return Compression.readAll(f);
+    }
+
+    /** Return true if blob BLOBSHA exists, packed or loose. */
+    public static boolean hasBlobInGitDir(String blobSHA) {
+        return blobSHA != null && (join(Main.BLOBS_DIR, blobSHA).isFile()
+                || PackFile.contains(blobSHA));
+    }
+
+    /** Hash file F and save it to BLOBS_DIR in the same pass, streaming
+     * through a fixed-size buffer so heap use does not depend on the size
+     * of F. The object is written to a temporary file and renamed once
+     * its SHA is known. Uncompressed objects are copied first, file to
+     * file, and the copy is then hashed.
+     * @param f file in CWD.
+     * @return the SHA code of the file. */
+    public static String saveBlobToGitDir(File f) {
+        try {
+            File tmp = Durable.temp();
+            String blobSHA;
+            if (Compression.current() == Compression.NONE) {
+                Compression.writeRaw(f, tmp);
+                blobSHA = sha1(tmp, Compression.rawOffset(tmp), null);
+            } else {
+                try (OutputStream out = Compression.newOutputStream(tmp)) {
+                    blobSHA = sha1(f, out);
+                }
+            }
+            if (hasBlobInGitDir(blobSHA)) {
+                Files.delete(tmp.toPath());
+            } else {
+                Durable.install(tmp, join(Main.BLOBS_DIR, blobSHA));
+                Gc.wroteLoose();
+            }
+            return blobSHA;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Save CONTENTS as a blob, unless a pack or loose object has it.
+     * @param contents the contents of the blob.
+     * @return the SHA code of the blob. */
+    public static String saveBlobToGitDir(byte[] contents) {
+        String blobSHA = sha1(contents);
+        if (!hasBlobInGitDir(blobSHA)) {
+            Compression.write(join(Main.BLOBS_DIR, blobSHA), contents);
+        }
+        return blobSHA;
+    }
+
+    /** Save BLOBS to GITDIR, unless a pack or loose object has it.
+     * Uncompressed objects are copied file to file.
      * @param f file in CWD.
      * @param blobSHA the SHA code of the file
      */
     public static void saveBlobToGitDir(File f, String blobSHA) {
         File blobFile = new File(Main.BLOBS_DIR.getPath() + "/" + blobSHA);
-        writeContents(blobFile, readContents(f));
+        if (blobFile.exists() || PackFile.contains(blobSHA)) {
+            return;
+        }
+        writeLooseBlob(f, blobFile);
+        Gc.wroteLoose();
     }
-    /** Write the content of given file into CWD.
+
+    /** Write the contents of file F as loose blob BLOBFILE with the
+     * current codec, streaming them.
+     * @param f the contents.
+     * @param blobFile the loose object to write. */
+    private static void writeLooseBlob(File f, File blobFile) {
+        File tmp = Durable.temp();
+        if (Compression.current() == Compression.NONE) {
+            Compression.writeRaw(f, tmp);
+        } else {
+            try (InputStream in = Files.newInputStream(f.toPath());
+                 OutputStream out = Compression.newOutputStream(tmp)) {
+                in.transferTo(out);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        Durable.install(tmp, blobFile);
+    }
+
+    /** Write the content of given file into CWD. Uncompressed objects,
+     * loose or whole in a pack, are copied file to file without passing
+     * through the heap; compressed loose objects are decompressed as a
+     * stream straight into the file.
      * @param fileName name of file to be written/overwritten.
      * @param blobSha the SHA1 Code of file
      */
     public static void writeBlobToCWD(String fileName, String blobSha) {
-        File blobFile = new File(Main.BLOBS_DIR.getPath() + "/" + blobSha);
-        writeContents(new File(fileName), readContents(blobFile));
+        File blobFile = join(Main.BLOBS_DIR, blobSha);
+        File file = Worktree.prepare(fileName);
+        if (!blobFile.isFile()) {
+            if (!PackFile.copy(blobSha, file)) {
+                writeContents(file, getBlobBytesInGitDir(blobSha));
+            }
+            return;
+        }
+        long raw = Compression.rawOffset(blobFile);
+        if (raw >= 0) {
+            Compression.copy(blobFile, raw, blobFile.length() - raw, file);
+            return;
+        }
+        try (InputStream in = Compression.newInputStream(blobFile);
+             OutputStream out = Files.newOutputStream(file.toPath())) {
+            in.transferTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
-    /** Save branches to BRANCHES_DIR.
-     * JUST FOR FUN.
-     * @param branchSHA the SHA of branch to be saved. */
-    public static void saveBranchToGitDir(String branchSHA) {
-        File f = new File(Main.BRANCHES_DIR.getPath() + "/" + branchSHA);
-        writeObject(f, branchSHA);
+    /** Directories holding loose objects. */
+    private static final File[] LOOSE_DIRS = {
+        Main.COMMIT_DIR, Main.TREES_DIR, Main.BLOBS_DIR
+    };
+
+    /** REPACK COMMAND.
+     * Move every loose object, and the contents of all existing packs,
+     * into one new pack, then delete what it replaces. */
+    public static void repack() {
+        TreeSet<String> blobs = new TreeSet<>(PackFile.list(PackFile.BLOB));
+        blobs.addAll(plainFilenamesIn(Main.BLOBS_DIR));
+        packObjects(allCommitSHAs(), Tree.all(), new ArrayList<>(blobs));
     }
 
-    /** File named f get added to stage.
-     * @param fileName add to the current to-be-committed. */
-    public void addToStaged(String fileName) {
-        File fileCWD = new File(fileName);
+    /** GC COMMAND.
+     * Keep only the objects reachable from a branch head or from the
+     * staging area, packing them into one new pack, and delete the rest
+     * along with every loose object and old pack. The commit index,
+     * commit graph and message index are rebuilt without the deleted
+     * commits, and temporary files older than an hour, left by commands
+     * that died, are removed. */
+    public void gc() {
+        Bitmaps.Reach keep = Bitmaps.current().reach(branchHeads(),
+                stage().getStagedForAddition().values());
+        packObjects(keep.list(PackFile.COMMIT), keep.list(PackFile.TREE),
+                    keep.list(PackFile.BLOB));
+        Tree.reload();
+        CommitIndex.rebuild();
+        CommitGraph.rebuild();
+        MessageIndex.rebuild();
+        Gc.deleteStaleTemps(STALE_TEMP_AGE);
+    }
+
+    /** COUNT-REACHABLE COMMAND.
+     * Print how many commits, trees and blobs the first branch in
+     * BRANCHNAMES reaches, leaving out those the second, if given, also
+     * reaches. The sets come from the reachability bitmaps where they
+     * cover history, and the difference is taken on the bitmaps.
+     * @param branchNames one or two branch names. */
+    public void countReachable(String... branchNames) {
+        if (branchNames.length > 2) {
+            System.out.println("Incorrect operands.");
+            Main.exit(0);
+        }
+        Bitmaps bitmaps = Bitmaps.current();
+        Bitmaps.Reach reach = null;
+        for (String branchName : branchNames) {
+            String sha = readBranch(branchName);
+            if (sha == null) {
+                System.out.println("A branch with that name does not exist.");
+                Main.exit(0);
+            }
+            Bitmaps.Reach r = bitmaps.reach(List.of(sha), List.of());
+            reach = reach == null ? r : reach.andNot(r);
+        }
+        System.out.printf("%d commits, %d trees, %d blobs%n",
+                          reach.count(PackFile.COMMIT),
+                          reach.count(PackFile.TREE),
+                          reach.count(PackFile.BLOB));
+    }
+
+    /** Count the loose objects this command wrote and run gc once there
+     * are more than gitlet.gcAuto of them (GC_AUTO by default; 0 never
+     * runs it). */
+    public void autoGc() {
+        int limit = Integer.getInteger("gitlet.gcAuto", GC_AUTO);
+        if (Gc.countLoose() > limit && limit > 0) {
+            gc();
+        }
+    }
+
+    /** Write COMMITS, TREES and BLOBS into one new pack, and delete every
+     * other pack and every loose object. A loose copy of an object is
+     * preferred to a packed one (see migrate). The parent of each commit
+     * in COMMITS must be in COMMITS too. Reachability bitmaps are then
+     * written for the new pack.
+     * Blobs larger than gitlet.bigBlob bytes (BIG_BLOB by default) are
+     * left loose instead, being written out of the old packs as a stream
+     * if need be, since packing holds each object in memory.
+     * @param commits the commits to keep.
+     * @param trees the trees to keep.
+     * @param blobs the blobs to keep. */
+    static void packObjects(List<String> commits, List<String> trees,
+                            List<String> blobs) {
+        long bigBlob = Long.getLong("gitlet.bigBlob", BIG_BLOB);
+        HashSet<String> big = new HashSet<>();
+        List<String> shas = new ArrayList<>();
+        List<Byte> types = new ArrayList<>();
+        for (String sha : commits) {
+            shas.add(sha);
+            types.add(PackFile.COMMIT);
+        }
+        for (String sha : trees) {
+            shas.add(sha);
+            types.add(PackFile.TREE);
+        }
+        for (String sha : blobs) {
+            if (isBigBlob(sha, bigBlob)) {
+                big.add(sha);
+                unpackBlob(sha);
+            } else {
+                shas.add(sha);
+                types.add(PackFile.BLOB);
+            }
+        }
+        HashMap<String, String> bases = deltaBases(commits);
+        bases.keySet().removeAll(big);
+        bases.values().removeAll(big);
+
+        List<PackFile> oldPacks = PackFile.all();
+        File newPack = PackFile.write(shas, types, bases, sha -> {
+            for (File dir : LOOSE_DIRS) {
+                File loose = join(dir, sha);
+                if (loose.isFile()) {
+                    return Compression.readAll(loose);
+                }
+            }
+            for (PackFile pack : oldPacks) {
+                int k = pack.find(sha);
+                if (k >= 0) {
+                    return pack.contents(k);
+                }
+            }
+            throw error("Missing object %s", sha);
+        });
+
+        Durable.sync();
+        for (PackFile pack : oldPacks) {
+            if (!pack.packFile().equals(newPack)) {
+                pack.idxFile().delete();
+                pack.packFile().delete();
+                pack.bitmapFile().delete();
+            }
+        }
+        for (File dir : LOOSE_DIRS) {
+            for (String sha : plainFilenamesIn(dir)) {
+                if (dir != Main.BLOBS_DIR || !big.contains(sha)) {
+                    join(dir, sha).delete();
+                }
+            }
+        }
+        Main.LOOSE_COUNT.delete();
+        PackFile.reload();
+        for (PackFile pack : PackFile.all()) {
+            if (pack.packFile().equals(newPack)) {
+                Bitmaps.write(pack, branchHeads());
+            }
+        }
+    }
+
+    /** Return true if blob SHA, loose or packed, is longer than LIMIT
+     * bytes.
+     * @param sha the blob.
+     * @param limit the size in bytes. */
+    private static boolean isBigBlob(String sha, long limit) {
+        File loose = join(Main.BLOBS_DIR, sha);
+        if (loose.isFile()) {
+            return Compression.longerThan(loose, limit);
+        }
+        return PackFile.size(sha) > limit;
+    }
+
+    /** Write packed blob SHA out as a loose object, unless it is loose
+     * already. A blob stored whole is copied out of its pack file to file;
+     * only one stored as a delta, by a pack written before deltas were
+     * limited to PackFile.MAX_DELTA, is rebuilt in memory.
+     * @param sha the blob. */
+    private static void unpackBlob(String sha) {
+        File loose = join(Main.BLOBS_DIR, sha);
+        if (loose.isFile()) {
+            return;
+        }
+        File tmp = Durable.temp();
+        if (!PackFile.copy(sha, tmp)) {
+            writeContents(tmp, PackFile.read(sha));
+        }
+        writeLooseBlob(tmp, loose);
+        tmp.delete();
+    }
+
+    /** Return the delta base to use for each blob of COMMITS when
+     * packing: the previous version of the same file in a parent commit.
+     * No chain of bases is a cycle or longer than PackFile.MAX_DEPTH.
+     * @param commits the commits being packed. */
+    private static HashMap<String, String> deltaBases(List<String> commits) {
+        HashMap<String, String> bases = new HashMap<>();
+        for (String sha : commits) {
+            Commit c = getCommitInGitDir(sha);
+            if (c.getParentSHA() == null) {
+                continue;
+            }
+            String prevTree = c.getParent().getTreeSHA();
+            for (String[] change
+                     : Tree.diff(prevTree, c.getTreeSHA()).values()) {
+                String base = change[0];
+                String blob = change[1];
+                if (base != null && blob != null
+                        && !bases.containsKey(blob)
+                        && !chainReaches(bases, base, blob)) {
+                    bases.put(blob, base);
+                }
+            }
+        }
+
+        HashMap<String, Integer> depths = new HashMap<>();
+        for (String blob : new ArrayList<>(bases.keySet())) {
+            ArrayList<String> chain = new ArrayList<>();
+            String x = blob;
+            while (x != null && !depths.containsKey(x)) {
+                chain.add(x);
+                x = bases.get(x);
+            }
+            int depth = x == null ? -1 : depths.get(x);
+            for (int i = chain.size() - 1; i >= 0; i -= 1) {
+                depth += 1;
+                if (depth > PackFile.MAX_DEPTH) {
+                    bases.remove(chain.get(i));
+                    depth = 0;
+                }
+                depths.put(chain.get(i), depth);
+            }
+        }
+        return bases;
+    }
+
+    /** Return true if following BASES from FROM reaches TARGET. */
+    private static boolean chainReaches(HashMap<String, String> bases,
+                                        String from, String target) {
+        for (String x = from; x != null; x = bases.get(x)) {
+            if (x.equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Files named by PATHS get added to stage. Each path is a file
+     * name, a glob pattern such as "*.txt", or "." for every file in the
+     * CWD. All paths are checked before anything is staged.
+     * @param paths add to the current to-be-committed. */
+    public void addToStaged(String... paths) {
+        TreeSet<String> fileNames = new TreeSet<>();
+        for (String path : paths) {
+            fileNames.addAll(expandPath(path));
+        }
+        stageChanged().addAll(new ArrayList<>(fileNames));
+    }
+
+    /** Return the paths of the files in the working tree that PATH
+     * denotes. A directory denotes every file under it.
+     * @param path a file name, directory, glob pattern or ".". */
+    private static List<String> expandPath(String path) {
+        List<String> filesInCWD = Worktree.sortedFiles();
+        if (path.equals(".")) {
+            return filesInCWD;
+        }
+        if (path.matches(".*[*?\\[{].*")) {
+            PathMatcher matcher = FileSystems.getDefault()
+                .getPathMatcher("glob:" + Worktree.normalize(path));
+            List<String> result = new ArrayList<>();
+            for (String fileName : filesInCWD) {
+                if (matcher.matches(Paths.get(fileName))) {
+                    result.add(fileName);
+                }
+            }
+            if (result.isEmpty()) {
+                System.out.println("File does not exist.");
+                Main.exit(0);
+            }
+            return result;
+        }
+        File fileCWD = new File(path);
         if (!fileCWD.exists()) {
             System.out.println("File does not exist.");
-            System.exit(0);
-        } else if (fileName.isEmpty()) {
+            Main.exit(0);
+        } else if (path.isEmpty()) {
             System.out.println("Filename is empty.");
-            System.exit(0);
+            Main.exit(0);
         } else if (fileCWD.isDirectory()) {
-            System.out.println("File is a directory.");
-            System.exit(0);
-        } else {
-            _stage.add(fileName);
+            String prefix = Worktree.normalize(path) + "/";
+            List<String> result = new ArrayList<>();
+            for (String fileName : filesInCWD) {
+                if (fileName.startsWith(prefix)) {
+                    result.add(fileName);
+                }
+            }
+            return result;
+        }
+        return Collections.singletonList(Worktree.normalize(path));
+    }
+
+    /** MIGRATE COMMAND.
+     * Rewrite the commits, trees and index of a repository made before
+     * their binary encodings, which were stored with Java serialization.
+     * Loose objects are rewritten in place. Packed objects are written
+     * out loose and the packs are then repacked. Objects already in the
+     * binary encoding are left alone, so migrating twice is harmless.
+     * A repository older still, whose whole state is in LEGACY_STATE, is
+     * first converted by LegacyRepo before the controller is loaded. */
+    public void migrate() {
+        boolean packed = false;
+        for (String sha : allCommitSHAs()) {
+            packed |= migrate(sha, Main.COMMIT_DIR,
+                              b -> Commit.fromBytes(b).toBytes());
+        }
+        for (String sha : Tree.all()) {
+            packed |= migrate(sha, Main.TREES_DIR,
+                              b -> Tree.fromBytes(b).toBytes());
+        }
+        if (packed) {
+            repack();
         }
+        stageChanged();
+    }
+
+    /** Re-encode object SHA with ENCODE if it is Java-serialized, writing
+     * the result as a loose object in DIR.
+     * @param sha the object to migrate.
+     * @param dir the directory of loose objects of its kind.
+     * @param encode returns the binary encoding of serialized bytes.
+     * @return true if a packed object was written out loose. */
+    private static boolean migrate(String sha, File dir,
+                                   UnaryOperator<byte[]> encode) {
+        File loose = join(dir, sha);
+        boolean isLoose = loose.isFile();
+        byte[] bytes = isLoose ? Compression.readAll(loose)
+            : PackFile.read(sha);
+        if (!isSerialized(bytes)) {
+            return false;
+        }
+        Compression.write(loose, encode.apply(bytes));
+        return !isLoose;
     }
 
     /** Make a COMMIT COMMAND.
      * @param msg the msg of the commit.
-     * @param p1 parent1 of merge if exists, null otherwise
-     * @param p2 paraent2 of merge if exits, null otherwise
+     * @param p1 SHA of parent1 of merge if exists, null otherwise
+     * @param p2 SHA of parent2 of merge if exits, null otherwise
      * Delegator Stage _stage class. */
-    public void commit(String msg, Commit p1, Commit p2) {
+    public void commit(String msg, String p1, String p2) {
         if (msg.equals("")) {
             System.out.println("Please enter a commit message.");
-            System.exit(0);
+            Main.exit(0);
         }
 
-        if (_stage.isClear()) {
+        if (stage().isClear()) {
             System.out.println("No changes added to the commit.");
-            System.exit(0);
+            Main.exit(0);
         }
 
-        Commit c = _stage.commit(msg, p1, p2);
-        _commits.add(c);
+        Commit c = stageChanged().commit(msg, p1, p2);
+        saveNewCommit(c);
+        setHead(c.getCommitSHA());
+    }
+
+    /** Save new commit C and add it to the commit index, commit graph
+     * and message index.
+     * @param c the commit made. */
+    static void saveNewCommit(Commit c) {
         saveCommitToGitDir(c);
-        _headSHA = sha1((serialize(c)));
-        _branches.put(_currBranch, c);
+        CommitIndex.add(c.getCommitSHA());
+        CommitGraph.add(c);
+        MessageIndex.append(c.getCommitSHA(), c.getMessage());
     }
 
     /** Make a RM COMMAND.
@@ -139,12 +674,12 @@ public class GitlitController implements Serializable {
         File fileCWD = new File(fileName);
         if (fileName.isEmpty()) {
             System.out.println("Filename is empty.");
-            System.exit(0);
+            Main.exit(0);
         } else if (fileCWD.isDirectory()) {
             System.out.println("File is a directory.");
-            System.exit(0);
+            Main.exit(0);
         } else {
-            _stage.rm(fileName);
+            stageChanged().rm(Worktree.normalize(fileName));
         }
     }
 
@@ -154,34 +689,83 @@ public class GitlitController implements Serializable {
         while (currSHA != null) {
             Commit c = getCommitInGitDir(currSHA);
             c.log();
-            if (c.getParent() != null) {
-                currSHA = c.getParent().getCommitSHA();
-            } else {
-                break;
-            }
+            currSHA = c.getParentSHA();
         }
     }
 
     /** Print all commits ever made. */
     public void globalLog() {
-        for (int i = 0; i < _commits.size(); i++) {
-            _commits.get(i).log();
+        for (String commitSHA : allCommitSHAs()) {
+            getCommitInGitDir(commitSHA).log();
         }
     }
 
     /** Find commits with given msg.
      * @param msg the msg of the commit. */
     public void find(String msg) {
-        int foundMessage = 0;
-        for (Commit c: _commits) {
-            if (c.getMessage().equals(msg)) {
-                System.out.println(c.getCommitSHA());
-                foundMessage += 1;
-            }
-        }
-        if (foundMessage == 0) {
+        printFound(MessageIndex.exact(msg));
+    }
+
+    /** Find commits whose messages contain every token of QUERY, ignoring
+     * case and punctuation.
+     * @param query words to look for. */
+    public void findTokens(String query) {
+        printFound(MessageIndex.token(query));
+    }
+
+    /** Find commits whose messages contain TEXT.
+     * @param text the text to look for. */
+    public void findSubstring(String text) {
+        printFound(MessageIndex.substring(text));
+    }
+
+    /** Print the SHAs in FOUND, or that nothing was found.
+     * @param found the SHAs of the matching commits. */
+    private void printFound(Set<String> found) {
+        if (found.isEmpty()) {
             System.out.println("Found no commit with that message.");
-            System.exit(0);
+            Main.exit(0);
+        }
+        for (String commitSHA : found) {
+            System.out.println(commitSHA);
+        }
+    }
+
+    /** DIFF COMMAND. With no arguments, show the working files that
+     * differ from the index; with --staged, the index against the head
+     * commit; with two commit IDs, the first commit against the second.
+     * Untracked files are not shown.
+     * @param args the arguments after "diff". */
+    public void diff(String... args) {
+        if (args.length == 0) {
+            for (Map.Entry<String, String> e
+                     : stage().unstagedChanges().entrySet()) {
+                File f = new File(e.getKey());
+                Diff.print(e.getKey(), getBlobBytesInGitDir(e.getValue()),
+                           f.isFile() ? readContents(f) : null);
+            }
+        } else if (args.length == 1 && args[0].equals("--staged")) {
+            Commit head = getCommitInGitDir(_headSHA);
+            for (String path : new TreeSet<>(stage().getStagedPaths())) {
+                String before = head.getBlobSHA(path);
+                String after = stage().getStagedForAddition().get(path);
+                if (before == null ? after != null : !before.equals(after)) {
+                    Diff.print(path, getBlobBytesInGitDir(before),
+                               getBlobBytesInGitDir(after));
+                }
+            }
+        } else if (args.length == 2) {
+            Commit from = getCommitInGitDir(resolveCommit(args[0]));
+            Commit to = getCommitInGitDir(resolveCommit(args[1]));
+            for (Map.Entry<String, String[]> e
+                     : Tree.diff(from.getTreeSHA(), to.getTreeSHA())
+                         .entrySet()) {
+                Diff.print(e.getKey(), getBlobBytesInGitDir(e.getValue()[0]),
+                           getBlobBytesInGitDir(e.getValue()[1]));
+            }
+        } else {
+            System.out.println("Incorrect operands.");
+            Main.exit(0);
         }
     }
 
@@ -190,7 +774,7 @@ public class GitlitController implements Serializable {
         status("Branches");
         status("Addition");
         status("Removal");
-        _stage.statusModifiedAndUntracked();
+        stage().statusModifiedAndUntracked();
     }
 
     /** STATUS COMMAND.
@@ -201,18 +785,17 @@ public class GitlitController implements Serializable {
         ArrayList<String> sortedByName = null;
         if (name.equals("Branches")) {
             kind = "=== Branches ===";
-            sortedByName =
-                    new ArrayList<String>(_branches.keySet());
+            sortedByName = new ArrayList<String>(branchNames());
         } else if (name.equals("Addition")) {
             kind = "=== Staged Files ===";
             sortedByName = new ArrayList<String>(
-                    _stage.getStagedForAddition().keySet());
+                    stage().getStagedForAddition().keySet());
         } else if (name.equals("Removal")) {
             kind = "=== Removed Files ===";
             sortedByName =
-                    new ArrayList<String>(_stage.getStagedForRemoval());
+                    new ArrayList<String>(stage().getStagedForRemoval());
         } else {
-            System.exit(0);
+            Main.exit(0);
         }
         Collections.sort(sortedByName);
 
@@ -237,11 +820,11 @@ public class GitlitController implements Serializable {
         File fileCWD = new File(fileName);
         if (fileName.isEmpty()) {
             System.out.println("File is empty.");
-            System.exit(0);
+            Main.exit(0);
         } else if (fileCWD.isDirectory()) {
             System.out.println("File is a directory.");
         } else {
-            _stage.checkout(fileName);
+            stage().checkout(Worktree.normalize(fileName));
         }
     }
 
@@ -249,134 +832,87 @@ public class GitlitController implements Serializable {
      * @param commitID the SHA code of given commit ID.
      * @param fileName the name of file we want to checkout. */
     public void checkout(String commitID, String fileName) {
-        int foundCommit = 0;
-        String commitSHA = "";
-        for (Commit c : _commits) {
-            if (c.getCommitSHA().substring(0, commitID.length()).
-                    equals(commitID)) {
-                foundCommit += 1;
-                commitSHA = c.getCommitSHA();
-                break;
-            }
-        }
-        if (foundCommit == 0) {
+        Commit thisCommit = getCommitInGitDir(resolveCommit(commitID));
+        String path = Worktree.normalize(fileName);
+        thisCommit.recover(path, thisCommit.getBlobSHA(path));
+    }
+
+    /** Return the full SHA of the commit abbreviated COMMITID, exiting
+     * with a message if there is no such commit or several.
+     * @param commitID a unique prefix of a commit SHA.
+     * @return the SHA of the commit. */
+    public static String resolveCommit(String commitID) {
+        String commitSHA = CommitIndex.resolve(commitID);
+        if (commitSHA == null) {
             System.out.println("No commit with that id exists.");
-            System.exit(0);
-        } else if (foundCommit > 1) {
-            System.out.print("SHA-1 is broken.");
-        } else {
-            Commit thisCommit = getCommitInGitDir(commitSHA);
-            String blobSHA = thisCommit.getBlobSHA(fileName);
-            thisCommit.recover(fileName, blobSHA);
+            Main.exit(0);
         }
+        return commitSHA;
     }
 
     /** Check out (go back to) BRANCH.
      * @param branchName name of the branch want to revert to. */
     public void checkoutBranch(String branchName) {
-        if (!_branches.containsKey(branchName)) {
+        String branchSHA = readBranch(branchName);
+        if (branchSHA == null) {
             System.out.println("No such branch exists.");
-            System.exit(0);
+            Main.exit(0);
         } else if (_currBranch.equals(branchName)) {
             System.out.println("No need to check out the current branch.");
-            System.exit(0);
+            Main.exit(0);
         } else {
-            if (_stage.commitIsUntracked()) {
-                System.exit(0);
-            }
-            List<String> filesInCWD = plainFilenamesIn(Main.CWD);
-            Commit branchCommit = getCommitInGitDir(
-                    _branches.get(branchName).getCommitSHA());
-            ArrayList<String> branchBlobs =
-                    new ArrayList<>(branchCommit.getBlobsPtr().keySet());
-
-            for (String blobName : branchCommit.getBlobsPtr().keySet()) {
-                String blobSHA = branchCommit.getBlobSHA(blobName);
-                branchCommit.recover(blobName, blobSHA);
-            }
+            checkoutCommit(getCommitInGitDir(branchSHA));
+            setCurrentBranch(branchName, branchSHA);
+        }
+    }
 
-            for (String fileCWD: filesInCWD) {
-                if (!branchBlobs.contains(fileCWD)) {
-                    restrictedDelete(fileCWD);
-                }
-            }
-            _stage.setHead(branchCommit);
-            _stage.clearAllStages();
-            _currBranch = branchName;
-            _headSHA = _branches.get(branchName).getCommitSHA();
+    /** Make the working tree and stage match commit TARGET, touching only
+     * the files that differ from the current head or are staged. Exits
+     * if an untracked file is in the way.
+     * @param target the commit to check out. */
+    private void checkoutCommit(Commit target) {
+        Stage stage = stageChanged();
+        CheckoutPlan plan = new CheckoutPlan(getCommitInGitDir(_headSHA),
+                target, stage.getStagedPaths());
+        if (plan.blockedByUntracked(stage.getStagedForAddition().keySet())) {
+            Main.exit(0);
         }
+        plan.execute();
+        stage.setHead(target);
+        stage.clearAllStages();
     }
 
     /** Creates a new Branch with given BranchName.
      * @param branchName create a new branch with this name. */
     public void branch(String branchName) {
-        if (_branches.containsKey(branchName)) {
+        if (readBranch(branchName) != null) {
             System.out.println("A branch with that name already exists");
-            System.exit(0);
+            Main.exit(0);
         }
-
-        saveBranchToGitDir(_headSHA);
-        Commit c = getCommitInGitDir(_headSHA);
-        _branches.put(branchName, c);
+        writeBranch(branchName, _headSHA);
     }
 
     /** Remove the branch given branchName.
      * @param branchName remove branch with this name. */
     public void rmBranch(String branchName) {
-        if (!_branches.containsKey(branchName)) {
+        if (readBranch(branchName) == null) {
             System.out.println("A branch with that name does not exist.");
             return;
         } else if (_currBranch.equals(branchName)) {
             System.out.println("Cannot remove the current branch.");
             return;
         } else {
-            _branches.remove(branchName);
+            Durable.deleteRef(join(Main.BRANCHES_DIR, branchName));
         }
     }
 
     /** Reset Commit Command. Similar to branch checkout.
      * Checks out all the files tracked by the given commit.
-     * @param commitSHA reset Commit with the SHA commitID. */
-    public void reset(String commitSHA) {
-        int found = 0;
-        Commit wantedCommit = null;
-        for (Commit c: _commits) {
-            if (c.getCommitSHA().equals(commitSHA)) {
-                found += 1;
-                wantedCommit = c;
-                break;
-            }
-        }
-        if (found == 0) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        } else if (found > 1) {
-            System.out.println("Hash SHA-1 is broken.");
-        } else if (wantedCommit != null) {
-            if (_stage.commitIsUntracked()) {
-                System.exit(0);
-            }
-
-            List<String> filesInCWD = plainFilenamesIn(Main.CWD);
-            HashMap<String, String> wantedBlobs = wantedCommit.getBlobsPtr();
-
-            for (String wantedBlob: wantedBlobs.keySet()) {
-                String blobSHA = wantedBlobs.get(wantedBlob);
-                wantedCommit.recover(wantedBlob, blobSHA);
-            }
-
-            for (String fileCWD: filesInCWD) {
-                if (!wantedBlobs.containsKey(fileCWD)) {
-                    restrictedDelete(fileCWD);
-                }
-            }
-            _stage.clearAllStages();
-            _stage.setHead(wantedCommit);
-            _branches.put(_currBranch, getCommitInGitDir(commitSHA));
-            _headSHA = commitSHA;
-        } else {
-            System.exit(0);
-        }
+     * @param commitID reset to the commit with this (abbreviated) ID. */
+    public void reset(String commitID) {
+        String commitSHA = resolveCommit(commitID);
+        checkoutCommit(getCommitInGitDir(commitSHA));
+        setHead(commitSHA);
     }
 
 
@@ -385,310 +921,104 @@ public class GitlitController implements Serializable {
      * and given Commits.
      * Inspiration: https://git-scm.com/book/en/v2/Git-Branching-Basic-
      * Branching-and-Merging (Fast-forward, 3-way merge and conflicts)
+     * What happens to each file is worked out first as a MergePlan and
+     * then carried out in one batch.
      * @param branchName the branch to merge from. */
     public void merge(String branchName) {
         if (mergeErros(branchName)) {
-            System.exit(0);
+            Main.exit(0);
         }
+        String givenSHA = readBranch(branchName);
         Commit current = getCommitInGitDir(_headSHA);
-        Commit given = getCommitInGitDir(
-                _branches.get(branchName).getCommitSHA());
+        Commit given = getCommitInGitDir(givenSHA);
         Commit splitPt = splitPoint(current, given);
+        MergePlan plan = new MergePlan(splitPt, current, given);
+        boolean mergeConflict = plan.execute(stageChanged());
 
-        HashMap<String, String> currBlobs = current.getBlobsPtr();
-        HashMap<String, String> givenBlobs = given.getBlobsPtr();
-        HashMap<String, String> splitBlobs = splitPt.getBlobsPtr();
-
-        int mergeConflict = mergeHelper(currBlobs, givenBlobs, splitBlobs);
-
-        Commit p1 = _branches.get(branchName);
-        Commit p2 = getCommitInGitDir(_headSHA);
+        String p1 = givenSHA;
+        String p2 = _headSHA;
         commit("Merged " + branchName + " into " + _currBranch
                 + ".", p1, p2);
 
-        if (mergeConflict == 1) {
+        if (mergeConflict) {
             System.out.println("Encountered a merge conflict.");
         }
 
 
     }
 
-    /** Merge Helper Delegation.
-     * @param currBlobs Blobs of current head commit.
-     * @param givenBlobs Blobs of given branch commit.
-     * @param splitBlobs Blobs of split point commit.
-     * @return True if there is a merge conflict.
-     * Written by the Order of the spec, including 8 bullet points. */
-    public int mergeHelper(HashMap<String, String> currBlobs,
-                            HashMap<String, String> givenBlobs,
-                            HashMap<String, String> splitBlobs) {
-        int mergeConflict = 0;
-        String currBlobSHA, givenBlobSHA, splitBlobSHA;
-
-        for (String blobFile: givenBlobs.keySet()) {
-            currBlobSHA = currBlobs.get(blobFile);
-            givenBlobSHA = givenBlobs.get(blobFile);
-            splitBlobSHA = splitBlobs.get(blobFile);
-
-            cond1and5(currBlobSHA, givenBlobSHA, splitBlobSHA, givenBlobs);
-            cond2(currBlobSHA, givenBlobSHA, splitBlobSHA);
-            cond3(currBlobSHA, givenBlobSHA, splitBlobSHA, givenBlobs);
-            cond7(currBlobSHA, givenBlobSHA, splitBlobSHA);
+    /** MERGE-REF COMMAND.
+     * Merge branch GIVEN into branch TARGET using only the object store,
+     * for merges run where there is no working tree to check out. The
+     * result is worked out in memory: merged files are saved as blobs,
+     * the merge commit is written, and TARGET is moved to it. The working
+     * tree, the stage and HEAD are not touched, so TARGET may not be the
+     * current branch. If some file conflicts, the conflicting files are
+     * listed and nothing is written: TARGET is left where it was, and
+     * files that did merge cleanly are not saved.
+     * @param target the branch to merge into.
+     * @param givenBranch the branch to merge from. */
+    public void mergeRef(String target, String givenBranch) {
+        String targetSHA = readBranch(target);
+        String givenSHA = readBranch(givenBranch);
+        if (targetSHA == null || givenSHA == null) {
+            System.out.println("A branch with that name does not exist.");
+            Main.exit(0);
         }
-
-        for (String blobFile: currBlobs.keySet()) {
-            currBlobSHA = currBlobs.get(blobFile);
-            givenBlobSHA = givenBlobs.get(blobFile);
-            splitBlobSHA = splitBlobs.get(blobFile);
-
-            cond4(currBlobSHA, givenBlobSHA, splitBlobSHA);
-            cond6(currBlobSHA, givenBlobSHA, splitBlobSHA, splitBlobs);
-            if (cond8(blobFile, currBlobSHA, givenBlobSHA, splitBlobSHA)) {
-                mergeConflict = 1;
-            }
+        if (target.equals(givenBranch)) {
+            System.out.println("Cannot merge a branch with itself.");
+            Main.exit(0);
         }
-        return mergeConflict;
-    }
-
-    /** Condition#1: Any files that have been modified in the given
-     * branch since the split point, but not modified in the current
-     * branch since the split point should be changed to their versions
-     * in the given branch (checked out from the commit at the front
-     * of the given branch). These files should then all be automatically
-     * staged. To clarify, if a file is "modified in the given branch
-     * since the split point" this means the version of the file as it
-     * exists in the commit at the front of the given branch has different
-     * content from the version of the file at the split point.
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     * @param givenBlobs all Blobs in the merge given branch
-     */
-    /** Condition#5: Any files that were not present at the split point and
-     *  are present only in the given branch should be checked out and staged.
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     * @param givenBlobs all Blobs in the merge given branch
-     */
-    public void cond1and5(String currSHA, String givenSHA,
-                      String splitSHA, HashMap<String, String> givenBlobs) {
-        if ((currSHA == null && splitSHA == null)
-                || (splitSHA != null && !splitSHA.equals(givenSHA)
-                    && splitSHA.equals(currSHA))) {
-            String desiredFileName = null;
-            for (String givenFileName : givenBlobs.keySet()) {
-                if (givenBlobs.get(givenFileName).equals(givenSHA)) {
-                    desiredFileName = givenFileName;
-                    break;
-                }
-            }
-            writeBlobToCWD(desiredFileName, givenSHA);
-            addToStaged(desiredFileName);
+        if (target.equals(_currBranch)) {
+            System.out.println("Cannot merge-ref into the current branch.");
+            Main.exit(0);
         }
-    }
-
-    /** Condition#2: Any files that have been modified in the current
-     * branch but not in the given branch since the split point should
-     * stay as they are.
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     */
-    public void cond2(String currSHA, String givenSHA,
-                      String splitSHA) {
-        if (splitSHA != null && currSHA != null) {
-            if (!splitSHA.equals(currSHA) && splitSHA.equals(givenSHA)) {
-                return;
-            }
-        }
-    }
-
-    /** Condition#3: Any files that have been modified in both the current
-     *  and given branch in the same way (i.e., both to files with the same
-     *  content or both removed) are left unchanged by the merge. If a file
-     *  is removed in both, but a file of that name is present in the working
-     *  directory that file is not removed from the working directory (but it
-     *  continues to be absent—not staged—in the merge).
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     * @param givenBlobs all Blobs in the merge given branch
-     */
-    public void cond3(String currSHA, String givenSHA,
-                      String splitSHA, HashMap<String, String> givenBlobs) {
-        if (splitSHA != null && currSHA != null) {
-            if (givenSHA.equals(currSHA) && !currSHA.equals(splitSHA)) {
-                return;
-            }
+        Commit current = getCommitInGitDir(targetSHA);
+        Commit given = getCommitInGitDir(givenSHA);
+        Commit splitPt = splitPoint(current, given);
+        if (given.equals(splitPt)) {
+            System.out.println("Given branch is an ancestor of"
+                    + " the target branch.");
+            return;
         }
-    }
-
-    /** Condition#4: Any files that were not present at the split point and
-     *  are present only in the current branch should remain as they are.
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     */
-    public void cond4(String currSHA, String givenSHA,
-                      String splitSHA) {
-        if (splitSHA == null && currSHA != null && givenSHA == null) {
+        if (current.equals(splitPt)) {
+            writeBranch(target, givenSHA);
+            System.out.println("Target branch fast-forwarded.");
             return;
         }
-    }
 
-    /**  Condition#6: Any files present at the split point, unmodified in
-     *  the current branch, and absent in the given branch should be removed
-     *  (and untracked).
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     * @param splitBlobs the blobs in split commit
-     */
-    public void cond6(String currSHA, String givenSHA,
-                      String splitSHA, HashMap<String, String> splitBlobs) {
-        if (splitSHA != null && givenSHA == null && currSHA.equals(splitSHA)) {
-            String desiredFileName = null;
-            for (String splitFileName : splitBlobs.keySet()) {
-                if (splitBlobs.get(splitFileName).equals(splitSHA)) {
-                    desiredFileName = splitFileName;
-                    break;
-                }
+        TreeSet<String> conflicted = new TreeSet<>();
+        HashMap<String, byte[]> merged = new HashMap<>();
+        HashMap<String, String> changes = new MergePlan(splitPt, current,
+                given).changes(conflicted, merged);
+        if (!conflicted.isEmpty()) {
+            for (String path : conflicted) {
+                System.out.println("Conflict in " + path);
             }
-            rm(desiredFileName);
-        }
-    }
-
-    /**  Condition#7: Any files present at the split point, unmodified in
-     * the given branch, and absent in the current branch should remain absent.
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     */
-    public void cond7(String currSHA, String givenSHA, String splitSHA) {
-        if (givenSHA.equals(splitSHA) && currSHA == null) {
+            System.out.println("Encountered a merge conflict.");
             return;
         }
-    }
-
-    /**  Condition#8: Any files modified in different ways in the current and
-     * given branches are in conflict. "Modified in different ways" can mean
-     * that the contents of both are changed and different from other, or the
-     * contents of one are changed and the other file is deleted, or the file
-     * was absent at the split point and has different contents in the given
-     * and current branches. In this case, replace the contents of the
-     * conflicted file with
-     <<<<<<< HEAD
-     contents of file in current branch
-     =======
-     contents of file in given branch
-     >>>>>>>
-     (replacing "contents of..." with the indicated file's contents) and stage
-     the result. Treat a deleted file in a branch as an empty file. Use straight
-     concatenation here. In the case of a file with no newline at the end, you
-     might well end up with something like this:
-     <<<<<<< HEAD
-     contents of file in current branch=======
-     contents of file in given branch>>>>>>>
-     * @param fileName the name of file to overwrite conflict content
-     * @param currSHA the SHA of current (master branch)
-     * @param givenSHA the SHA of given branch
-     * @param splitSHA the SHA of split point
-     * #diff1: The contents of both are changed and different from other
-     * #diff2: The contents of one are changed and the other file is deleted
-     * #diff3: The file was absent at the split point and has different contents
-     *        in the given and current branches.
-     * @return true if satisfies cond8
-     */
-    public boolean cond8(String fileName, String currSHA,
-                         String givenSHA, String splitSHA) {
-        boolean diff1 = givenSHA != null && splitSHA != null
-                && !givenSHA.equals(currSHA) && !givenSHA.equals(splitSHA)
-                && !currSHA.equals(splitSHA);
-
-        boolean diff2 = (splitSHA != null && !splitSHA.equals(currSHA)
-                && givenSHA == null);
-
-        boolean diff3 = (splitSHA == null && givenSHA != null
-                && !currSHA.equals(givenSHA));
-
-        if (diff1 || diff2 || diff3) {
-            writeMergeConflicts(fileName, givenSHA, currSHA);
-            addToStaged(fileName);
-            return true;
-        }
-        return false;
-    }
-
-    /** Write Conflict into CWD.
-     * @param fileName name of file to write to in CWD.
-     * @param givSHA name of SHA from given Branch.
-     * @param currSHA name of SHA from current Commit*/
-    public void writeMergeConflicts(String fileName,
-                                    String givSHA, String currSHA) {
-
-        String curContents = currSHA != null ? getBlobInGitDir(currSHA) : null;
-        String givContents = givSHA != null ? getBlobInGitDir(givSHA) : null;
-        String newCWDContents = null;
-
-        if (curContents != null && givContents != null) {
-            newCWDContents = "<<<<<<< HEAD\n" + curContents
-                    + "=======\n" + givContents + ">>>>>>>\n";
-        } else if (curContents == null) {
-            newCWDContents = "<<<<<<< HEAD\n" + "=======\n"
-                    + givContents + ">>>>>>>\n";
-        } else if (givContents == null) {
-            newCWDContents = "<<<<<<< HEAD\n" + curContents
-                    + "=======\n" + ">>>>>>>\n";
+        for (byte[] contents : merged.values()) {
+            saveBlobToGitDir(contents);
         }
-        writeContents(new File(fileName), newCWDContents);
+        Commit c = new Commit("Merged " + givenBranch + " into " + target
+                + ".", targetSHA, Tree.apply(current.getTreeSHA(), changes),
+                givenSHA, targetSHA);
+        saveNewCommit(c);
+        writeBranch(target, c.getCommitSHA());
     }
 
-    /** Get the SPLITPOINT COMMIT.
+    /** Get the SPLITPOINT COMMIT: a best common ancestor of CURRENT
+     * and GIVEN, found on the commit graph. A criss-cross history has
+     * several; the one nearest to CURRENT is used.
      * @param current usually the master branch
      * @param given desired merge branch
-     * CITE: https://stackoverflow.com/questions/25563797/git-branch-split-point
-     * Dangerous: after split, current and given point to parents
-     *             (not themselves)
      * @return the split point commit*/
     public Commit splitPoint(Commit current, Commit given) {
-        Commit pCurr = current;
-        Commit pGiv = given;
-        while (current.getParent() != null) {
-            if (current.getMergedParent1() != null) {
-                Commit p1 = current.getMergedParent1();
-                Commit givenP = given.getParent();
-                while (givenP != null) {
-                    if (givenP.equals(p1)) {
-                        return givenP;
-                    }
-                    givenP = givenP.getParent();
-                }
-            }
-            current = current.getParent();
-        }
-
-        current = pCurr; given = pGiv;
-        int currToInit = current.distanceToInit();
-        int givenToInit = given.distanceToInit();
-        int diffDist = givenToInit - currToInit;
-        if (diffDist > 0) {
-            while (diffDist > 0) {
-                given = given.getParent();
-                diffDist--;
-            }
-        } else {
-            diffDist = -diffDist;
-            while (diffDist > 0) {
-                current = current.getParent();
-                diffDist--;
-            }
-        }
-        while (!given.equals(current)) {
-            given = given.getParent();
-            current = current.getParent();
-        }
-        return current;
+        List<String> bases = CommitGraph.mergeBases(current.getCommitSHA(),
+                given.getCommitSHA());
+        return getCommitInGitDir(
+            CommitGraph.nearest(current.getCommitSHA(), bases));
     }
 
     /** All merge errors/conflicts.
@@ -698,14 +1028,15 @@ public class GitlitController implements Serializable {
      * https://www.youtube.com/watch?v=FyAAIHHClqI
      * */
     public boolean mergeErros(String branchName) {
-        if (_stage.commitIsUntracked()) {
+        if (stage().commitIsUntracked()) {
             return true;
         }
-        if (!_stage.isClear()) {
+        if (!stage().isClear()) {
             System.out.println("You have uncommitted changes.");
             return true;
         }
-        if (!_branches.containsKey(branchName)) {
+        String givenSHA = readBranch(branchName);
+        if (givenSHA == null) {
             System.out.println("A branch with that name does not exist.");
             return true;
         }
@@ -715,8 +1046,7 @@ public class GitlitController implements Serializable {
         }
 
         Commit current = getCommitInGitDir(_headSHA);
-        Commit given = getCommitInGitDir(
-                _branches.get(branchName).getCommitSHA());
+        Commit given = getCommitInGitDir(givenSHA);
         Commit splitPt = splitPoint(current, given);
 
         if (given.equals(splitPt)) {
@@ -741,12 +1071,9 @@ public class GitlitController implements Serializable {
     public Commit far(String commitID, String k) {
         boolean trueee = false;
         Commit cc = null;
-        for (Commit c: _commits) {
-            if (c.getCommitSHA().equals(commitID)) {
-                trueee = true;
-                cc = c;
-                break;
-            }
+        if (hasCommitInGitDir(commitID)) {
+            trueee = true;
+            cc = getCommitInGitDir(commitID);
         }
         System.out.println(trueee);
         System.out.println(cc.far(Integer.parseInt(k)).getMessage());
@@ -0,0 +1,203 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import static gitlet.Utils.*;
+
+/** Conversion of repositories made by the first versions of gitlet.
+ *
+ *  Those kept the whole repository state, the branches, the stage and a
+ *  list of every commit, as one Java-serialized GitlitController in
+ *  LEGACY_STATE. Each commit held its parents and its files as objects
+ *  rather than SHAs, and staged files were only saved as blobs when they
+ *  were committed. The classes involved have since changed shape, so the
+ *  state is read into the mirror classes below, which have the old
+ *  fields, by putting their class descriptors in place of the old ones
+ *  as the stream is read.
+ *  @author Truong Le
+ */
+class LegacyRepo {
+    /** The mirror of each old class, by the old class name. */
+    private static final Map<String, Class<?>> MIRRORS = Map.of(
+        "gitlet.GitlitController", OldController.class,
+        "gitlet.Stage", OldStage.class,
+        "gitlet.Commit", OldCommit.class);
+
+    /** The fields of the old GitlitController. */
+    private static class OldController implements Serializable {
+        private static final long serialVersionUID = 1L;
+        /** Every commit made, oldest first. */
+        private ArrayList<OldCommit> _commits;
+        /** Head commit of each branch, by name. */
+        private HashMap<String, OldCommit> _branches;
+        /** The staging area. */
+        private OldStage _stage;
+        /** Name of the current branch. */
+        private String _currBranch;
+        /** SHA of the head commit, in the old encoding. */
+        private String _headSHA;
+    }
+
+    /** The fields of the old Stage. */
+    private static class OldStage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        /** Files staged for addition. Key: name; Val: SHA when staged. */
+        private HashMap<String, String> _stagedForAdditionBlobs;
+        /** Files staged for removal. */
+        private HashSet<String> _stagedRemovalBlobs;
+        /** Scratch space of the old commit command. */
+        private HashMap<String, String> _allBlobsToBeCommited;
+        /** The head commit. */
+        private OldCommit _head;
+    }
+
+    /** The fields of the old Commit. */
+    private static class OldCommit implements Serializable {
+        private static final long serialVersionUID = 1L;
+        /** Commit message. */
+        private String _message;
+        /** Commit time. */
+        private Date _timestamp;
+        /** The parent, null for the initial commit. */
+        private OldCommit _parent;
+        /** Unused. */
+        private String _commitID;
+        /** Files of the commit. Key: name; Val: blob SHA. */
+        private HashMap<String, String> _blobsPtr;
+        /** Merged parent 1, null if not a merge. */
+        private OldCommit _mergedParent1;
+        /** Merged parent 2, null if not a merge. */
+        private OldCommit _mergedParent2;
+
+        /** Return the parents of this commit, some of which may be
+         *  null. */
+        OldCommit[] parents() {
+            return new OldCommit[] {_parent, _mergedParent1, _mergedParent2};
+        }
+    }
+
+    /** Rewrite the repository in the CWD, whose state is in
+     *  LEGACY_STATE, in the current format: every commit is written again
+     *  with parent SHAs and a tree (so all commit SHAs change), the
+     *  branches and HEAD become refs, and the stage becomes the index,
+     *  with each file staged for addition saved from the working
+     *  directory as the old commit command would have done. HEAD is
+     *  written last and LEGACY_STATE then deleted, so a conversion that
+     *  dies part way may simply be run again. */
+    static void migrate() {
+        OldController old = read();
+        Main.TREES_DIR.mkdir();
+        Main.PACK_DIR.mkdir();
+        List<String> oldCommitFiles = plainFilenamesIn(Main.COMMIT_DIR);
+        List<String> oldBranchFiles = plainFilenamesIn(Main.BRANCHES_DIR);
+
+        IdentityHashMap<OldCommit, String> converted = new IdentityHashMap<>();
+        HashSet<String> saved = new HashSet<>();
+        for (OldCommit c : old._commits) {
+            convert(c, converted, saved);
+        }
+        for (OldCommit c : old._branches.values()) {
+            convert(c, converted, saved);
+        }
+
+        Stage stage = new Stage();
+        for (String fileName : old._stage._stagedForAdditionBlobs.keySet()) {
+            File f = new File(fileName);
+            if (f.isFile()) {
+                stage.getStagedForAddition().put(fileName,
+                        GitlitController.saveBlobToGitDir(f));
+            }
+        }
+        stage.getStagedForRemoval().addAll(old._stage._stagedRemovalBlobs);
+        Durable.replace(Main.INDEX_FILE, stage.toBytes());
+
+        for (String name : oldBranchFiles) {
+            join(Main.BRANCHES_DIR, name).delete();
+        }
+        for (Map.Entry<String, OldCommit> e : old._branches.entrySet()) {
+            GitlitController.writeBranch(e.getKey(),
+                                         converted.get(e.getValue()));
+        }
+        for (String name : oldCommitFiles) {
+            if (!saved.contains(name)) {
+                join(Main.COMMIT_DIR, name).delete();
+            }
+        }
+        MessageIndex.rebuild();
+        Durable.updateRef(Main.HEAD_FILE, old._currBranch);
+        Main.LEGACY_STATE.delete();
+    }
+
+    /** Return the state stored in LEGACY_STATE. */
+    private static OldController read() {
+        try (ObjectInputStream in = new ObjectInputStream(
+                 new BufferedInputStream(
+                     Files.newInputStream(Main.LEGACY_STATE.toPath()))) {
+                @Override
+                protected ObjectStreamClass readClassDescriptor()
+                    throws IOException, ClassNotFoundException {
+                    ObjectStreamClass desc = super.readClassDescriptor();
+                    Class<?> mirror = MIRRORS.get(desc.getName());
+                    return mirror == null ? desc
+                        : ObjectStreamClass.lookup(mirror);
+                }
+            }) {
+            return (OldController) in.readObject();
+        } catch (IOException | ClassNotFoundException
+                 | ClassCastException excp) {
+            throw error("Corrupt repository state: %s",
+                        Main.LEGACY_STATE.getName());
+        }
+    }
+
+    /** Write commit C and its ancestors in the current format, parents
+     *  first, recording the new SHA of each in CONVERTED and adding each
+     *  SHA written to SAVED. The old state may hold several copies of one
+     *  commit; they convert to the same SHA, which is written once. */
+    private static void convert(OldCommit c,
+                                IdentityHashMap<OldCommit, String> converted,
+                                HashSet<String> saved) {
+        ArrayDeque<OldCommit> stack = new ArrayDeque<>();
+        stack.push(c);
+        while (!stack.isEmpty()) {
+            OldCommit top = stack.peek();
+            if (converted.containsKey(top)) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (OldCommit parent : top.parents()) {
+                if (parent != null && !converted.containsKey(parent)) {
+                    stack.push(parent);
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            Commit commit = new Commit(top._message,
+                    converted.get(top._parent),
+                    Tree.apply(Tree.empty(), top._blobsPtr),
+                    converted.get(top._mergedParent1),
+                    converted.get(top._mergedParent2), top._timestamp);
+            if (saved.add(commit.getCommitSHA())) {
+                GitlitController.saveNewCommit(commit);
+            }
+            converted.put(top, commit.getCommitSHA());
+        }
+    }
+}
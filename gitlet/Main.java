@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.File;
+import java.util.Arrays;
 import static gitlet.Utils.*;
 
 /** Driver class for Gitlet, the tiny stupid version-control system.
@@ -15,29 +16,69 @@ public class Main {
     static final File BLOBS_DIR = join(GITLIT_DIR, "blobs");
     /** Commits folder, inside of .gitlet. */
     static final File COMMIT_DIR = join(GITLIT_DIR, "commits");
+    /** Trees folder, inside of .gitlet. */
+    static final File TREES_DIR = join(GITLIT_DIR, "trees");
+    /** Packs folder, inside of .gitlet. */
+    static final File PACK_DIR = join(GITLIT_DIR, "packs");
     /** Branches folder, inside of .gitlet. */
     static final File BRANCHES_DIR = join(GITLIT_DIR, "branches");
-    /** Version of GitlitController, inside of .gitlet. */
-    static final File VERSION_DIR = join(GITLIT_DIR, "gitlet");
+    /** Name of the current branch, inside of .gitlet. */
+    static final File HEAD_FILE = join(GITLIT_DIR, "HEAD");
+    /** Staging area (index), inside of .gitlet. */
+    static final File INDEX_FILE = join(GITLIT_DIR, "index");
+    /** Sorted index of commit SHAs, inside of .gitlet. */
+    static final File COMMIT_INDEX = join(GITLIT_DIR, "commit-index");
+    /** Commits not yet in COMMIT_INDEX, inside of .gitlet. */
+    static final File COMMIT_LOG = join(GITLIT_DIR, "commit-index.log");
+    /** Parents and generations of commits, inside of .gitlet. */
+    static final File COMMIT_GRAPH = join(GITLIT_DIR, "commit-graph");
+    /** Commits not yet in COMMIT_GRAPH, inside of .gitlet. */
+    static final File COMMIT_GRAPH_LOG = join(GITLIT_DIR, "commit-graph.log");
+    /** Commit message index, inside of .gitlet. */
+    static final File MESSAGES_FILE = join(GITLIT_DIR, "messages");
+    /** Commit messages not yet in MESSAGES_FILE, inside of .gitlet. */
+    static final File MESSAGES_LOG = join(GITLIT_DIR, "messages.log");
+    /** Journal of ref updates, inside of .gitlet. */
+    static final File REF_JOURNAL = join(GITLIT_DIR, "ref-journal");
+    /** The previous REF_JOURNAL, once it grew too long. */
+    static final File REF_JOURNAL_OLD = join(GITLIT_DIR, "ref-journal.old");
+    /** Loose objects written since the last pack, inside of .gitlet. */
+    static final File LOOSE_COUNT = join(GITLIT_DIR, "loose-count");
+    /** Socket a running daemon listens on, inside of .gitlet. */
+    static final File DAEMON_SOCKET = join(GITLIT_DIR, "daemon.sock");
+    /** The whole repository state as written by the first versions of
+     * gitlet, which kept no HEAD_FILE. */
+    static final File LEGACY_STATE = join(GITLIT_DIR, "gitlet");
     /** The main Lines of Gitlit.
      * @param args COMMAND LINEs. */
     public static void main(String... args) {
         if (args.length == 0) {
             System.out.println("Please enter a command.");
-            System.exit(0);
+            exit(0);
         }
         if (!GITLIT_DIR.exists() && !args[0].equals("init")) {
             System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            exit(0);
         }
+        if (!HEAD_FILE.exists() && LEGACY_STATE.isFile()
+                && !args[0].equals("init")) {
+            if (!args[0].equals("migrate")) {
+                System.out.println("This repository was made by an older"
+                        + " version of gitlet; run migrate to upgrade it.");
+                exit(0);
+            }
+            LegacyRepo.migrate();
+        }
+        Durable.recoverRefs();
 
         GitlitController gitlit = loadGitLit();
 
         switch (args[0]) {
         case "init":        validateNumArgs("init", args, 1);
             gitlit = initCommand(); break;
-        case "add":         validateNumArgs("add", args, 2);
-            gitlit.addToStaged(args[1]); break;
+        case "add":         validateMinArgs("add", args, 2);
+            gitlit.addToStaged(Arrays.copyOfRange(args, 1, args.length));
+            break;
         case "commit":      validateNumArgs("commit", args, 2);
             commitCommand(gitlit, args); break;
         case "rm":          validateNumArgs("rm", args, 2);
@@ -46,8 +87,10 @@ public class Main {
             gitlit.log(); break;
         case "global-log":  validateNumArgs("global-log", args, 1);
             gitlit.globalLog(); break;
-        case "find":        validateNumArgs("find", args, 2);
-            gitlit.find(args[1]); break;
+        case "find":
+            findCommand(gitlit, args); break;
+        case "diff":
+            gitlit.diff(Arrays.copyOfRange(args, 1, args.length)); break;
         case "status":      validateNumArgs("status", args, 1);
             gitlit.status(); break;
         case "checkout":
@@ -60,6 +103,19 @@ public class Main {
             gitlit.reset(args[1]); break;
         case "merge":       validateNumArgs("merge", args, 2);
             gitlit.merge(args[1]); break;
+        case "merge-ref":   validateNumArgs("merge-ref", args, 3);
+            gitlit.mergeRef(args[1], args[2]); break;
+        case "daemon":      validateNumArgs("daemon", args, 1);
+            Daemon.serve(); break;
+        case "migrate":     validateNumArgs("migrate", args, 1);
+            gitlit.migrate(); break;
+        case "repack":      validateNumArgs("repack", args, 1);
+            GitlitController.repack(); break;
+        case "gc":          validateNumArgs("gc", args, 1);
+            gitlit.gc(); break;
+        case "count-reachable": validateMinArgs("count-reachable", args, 2);
+            gitlit.countReachable(Arrays.copyOfRange(args, 1, args.length));
+            break;
         case "add-remote":  validateNumArgs("add-remove", args, 3);
         break;
         case "rm-remote":   validateNumArgs("rm-remove", args, 2);
@@ -75,8 +131,11 @@ public class Main {
             break;
         }
 
-        File gitlitFile = new File(VERSION_DIR.getPath());
-        writeObject(gitlitFile, gitlit);
+        if (gitlit != null) {
+            gitlit.save();
+            gitlit.autoGc();
+        }
+        Durable.sync();
     }
 
     /** Extra Credit REMOTE.
@@ -89,24 +148,33 @@ public class Main {
         }
     }
 
+    /** End the command with exit code STATUS. Outside a daemon the JVM
+     * exits; inside one only the command ends, and the daemon reports
+     * STATUS to its client.
+     * @param status the exit code. */
+    static void exit(int status) {
+        if (Daemon.serving()) {
+            throw new Daemon.Exit(status);
+        }
+        System.exit(status);
+    }
+
     /** Too long to put in main, so do it here.
      * @return a new Gitlit Controller.*/
     public static GitlitController initCommand() {
         if (GITLIT_DIR.exists()) {
             System.out.println("A Gitlet version-control system already"
                     + " exists in the current directory.");
-            System.exit(0);
+            exit(0);
         }
         GITLIT_DIR.mkdir();
         BLOBS_DIR.mkdir();
         COMMIT_DIR.mkdir();
+        TREES_DIR.mkdir();
         BRANCHES_DIR.mkdir();
+        PACK_DIR.mkdir();
 
-        GitlitController gitlit = new GitlitController();
-        File gitlitFile = new File(VERSION_DIR.getPath());
-        writeObject(gitlitFile, gitlit);
-
-        return gitlit;
+        return GitlitController.init();
     }
 
     /** Too long to put in main, so do it here.
@@ -115,11 +183,11 @@ public class Main {
     public static void commitCommand(GitlitController g, String... args) {
         if (args.length == 1) {
             System.out.println("Please enter a commit message");
-            System.exit(0);
+            exit(0);
 
         } else if (args.length > 2) {
             System.out.println("Incorrect operands.");
-            System.exit(0);
+            exit(0);
         }
         g.commit(args[1], null, null);
     }
@@ -139,17 +207,48 @@ public class Main {
         }
     }
 
-    /** Load gitlit if it's already inside the CWD.
+    /** FIND with a message, or with -t (tokens) or -s (substring) and a
+     * query.
+     * @param g current GitlitController.
+     * @param args command line. */
+    public static void findCommand(GitlitController g, String... args) {
+        if (args.length == 2) {
+            g.find(args[1]);
+        } else if (args.length == 3 && args[1].equals("-t")) {
+            g.findTokens(args[2]);
+        } else if (args.length == 3 && args[1].equals("-s")) {
+            g.findSubstring(args[2]);
+        } else {
+            System.out.println("Incorrect operands.");
+            exit(0);
+        }
+    }
+
+    /** Load gitlit if it's already inside the CWD. Only the HEAD ref is
+     * read here; the index and commits are read on demand.
      * @return the Gitlit Controller if exists. */
     public static GitlitController loadGitLit() {
         GitlitController controller = null;
-        File gitlit = new File(VERSION_DIR.getPath());
-        if (gitlit.exists()) {
-            controller = readObject(gitlit, GitlitController.class);
+        if (Main.HEAD_FILE.exists()) {
+            controller = new GitlitController();
         }
         return controller;
     }
 
+    /**
+     * Checks that there are at least N arguments, throws a
+     * RuntimeException otherwise.
+     * @param cmd Name of command you are validating
+     * @param args Argument array from command line
+     * @param n Minimum number of arguments
+     */
+    public static void validateMinArgs(String cmd, String[] args, int n) {
+        if (args.length < n) {
+            throw new RuntimeException(
+                    String.format("Invalid number of arguments for: %s.", cmd));
+        }
+    }
+
     /**
      * Checks the number of arguments versus the expected number,
      * throws a RuntimeException if they do not match.
@@ -0,0 +1,99 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A read-only file mapped into memory in windows, so that files larger
+ *  than the 2 GB a single MappedByteBuffer can hold are read with long
+ *  positions.
+ *
+ *  Window K maps the bytes from K * WINDOW for WINDOW + OVERLAP bytes
+ *  (or to the end of the file), so every read of at most OVERLAP bytes
+ *  lies wholly in the window its first byte falls in. Longer reads are
+ *  copied a window at a time.
+ *  @author Truong Le
+ */
+class MappedFile {
+    /** Default window size. */
+    static final long WINDOW = 1L << 30;
+    /** Default overlap between consecutive windows. */
+    static final int OVERLAP = 4096;
+
+    /** The windows, in order. */
+    private final MappedByteBuffer[] _windows;
+    /** Bytes between the starts of consecutive windows. */
+    private final long _window;
+    /** Size of the file. */
+    private final long _size;
+
+    /** FILE, mapped in windows of the default size. */
+    MappedFile(File file) {
+        this(file, WINDOW, OVERLAP);
+    }
+
+    /** FILE, mapped in windows starting every WINDOW bytes and each
+     *  extending OVERLAP bytes into the next. */
+    MappedFile(File file, long window, int overlap) {
+        _window = window;
+        try (FileChannel ch = FileChannel.open(file.toPath())) {
+            _size = ch.size();
+            int n = (int) Math.max(1, (_size + window - 1) / window);
+            _windows = new MappedByteBuffer[n];
+            for (int k = 0; k < n; k += 1) {
+                long start = k * window;
+                long len = Math.min(window + overlap, _size - start);
+                _windows[k] = ch.map(FileChannel.MapMode.READ_ONLY, start,
+                                     Math.max(len, 0));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the size of the file. */
+    long size() {
+        return _size;
+    }
+
+    /** Return the byte at POS. */
+    byte get(long pos) {
+        return window(pos).get(offset(pos));
+    }
+
+    /** Return the int at POS. */
+    int getInt(long pos) {
+        return window(pos).getInt(offset(pos));
+    }
+
+    /** Return the long at POS. */
+    long getLong(long pos) {
+        return window(pos).getLong(offset(pos));
+    }
+
+    /** Fill DST with the bytes starting at POS. */
+    void get(long pos, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            long at = pos + done;
+            int n = (int) Math.min(dst.length - done,
+                                   _window - offset(at));
+            window(at).get(offset(at), dst, done, n);
+            done += n;
+        }
+    }
+
+    /** Return the window holding POS. */
+    private MappedByteBuffer window(long pos) {
+        if (pos < 0 || pos >= _size) {
+            throw new IndexOutOfBoundsException(Long.toString(pos));
+        }
+        return _windows[(int) (pos / _window)];
+    }
+
+    /** Return the offset of POS within its window. */
+    private int offset(long pos) {
+        return (int) (pos % _window);
+    }
+}
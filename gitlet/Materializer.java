@@ -0,0 +1,84 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Writes blobs into the working tree concurrently. Checkouts of many
+ *  files are bound by the latency of each write rather than by
+ *  bandwidth, so files are written on a bounded pool of daemon threads
+ *  (gitlet.writers threads, twice the number of cores by default).
+ *  @author Truong Le
+ */
+class Materializer {
+    /** The writer threads, created on first use. */
+    private static ExecutorService _pool;
+
+    /** Return the writer pool. */
+    private static synchronized ExecutorService pool() {
+        if (_pool == null) {
+            int n = Integer.getInteger("gitlet.writers",
+                    2 * Runtime.getRuntime().availableProcessors());
+            _pool = Executors.newFixedThreadPool(Math.max(1, n), r -> {
+                Thread t = new Thread(r, "gitlet-writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return _pool;
+    }
+
+    /** Write every file in WRITES (Key: path; Val: blob SHA) into the
+     *  working tree. If a blob is missing, prints "File does not exist in
+     *  that commit." and exits before anything is written. Every write is
+     *  attempted even if some fail; the first failure is then thrown as
+     *  an IllegalArgumentException. */
+    static void materialize(Map<String, String> writes) {
+        for (String blobSHA : writes.values()) {
+            if (!GitlitController.hasBlobInGitDir(blobSHA)) {
+                System.out.println("File does not exist in that commit.");
+                Main.exit(0);
+            }
+        }
+        if (writes.size() <= 1) {
+            for (Map.Entry<String, String> e : writes.entrySet()) {
+                GitlitController.writeBlobToCWD(e.getKey(), e.getValue());
+            }
+            return;
+        }
+
+        List<Future<?>> pending = new ArrayList<>();
+        for (Map.Entry<String, String> e : writes.entrySet()) {
+            pending.add(pool().submit(() ->
+                GitlitController.writeBlobToCWD(e.getKey(), e.getValue())));
+        }
+        RuntimeException failure = null;
+        int failures = 0;
+        for (Future<?> f : pending) {
+            try {
+                f.get();
+            } catch (ExecutionException excp) {
+                failures += 1;
+                if (failure == null) {
+                    failure = excp.getCause() instanceof RuntimeException
+                        ? (RuntimeException) excp.getCause()
+                        : new IllegalArgumentException(excp.getMessage());
+                }
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        if (failure != null) {
+            if (failures > 1) {
+                failure.addSuppressed(new IllegalArgumentException(
+                    String.format("%d files could not be written", failures)));
+            }
+            throw failure;
+        }
+    }
+}
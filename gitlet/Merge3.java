@@ -0,0 +1,126 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** A three-way merge of texts, line by line, in the manner of diff3.
+ *
+ *  Both sides are compared with the base using Diff. Base lines kept on
+ *  both sides split the texts into stable lines and the chunks between
+ *  them. A chunk changed on only one side, or changed the same way on
+ *  both, takes that change; a chunk changed differently on each side is
+ *  a conflict and is written between markers:
+ *      <<<<<<< HEAD
+ *      lines of the current branch
+ *      =======
+ *      lines of the given branch
+ *      >>>>>>>
+ *  A side whose last line has no newline gets one inside the markers.
+ *  The result is written straight to a stream as it is worked out.
+ *  @author Truong Le
+ */
+class Merge3 {
+    /** Start of a conflict, before the current branch's lines. */
+    static final String OURS_MARKER = "<<<<<<< HEAD\n";
+    /** Between the current and given branch's lines. */
+    static final String SEPARATOR = "=======\n";
+    /** End of a conflict. */
+    static final String THEIRS_MARKER = ">>>>>>>\n";
+
+    /** Lines of the base, current and given texts. */
+    private final List<String> _base, _ours, _theirs;
+    /** For each base line, its line in _ours and _theirs, or -1. */
+    private final int[] _inOurs, _inTheirs;
+    /** Where the result goes. */
+    private final OutputStream _out;
+    /** True once a conflict has been written. */
+    private boolean _conflict;
+
+    /** A merge of the changes from BASE to OURS and to THEIRS, written to
+     *  OUT. */
+    private Merge3(byte[] base, byte[] ours, byte[] theirs,
+                   OutputStream out) {
+        _base = Diff.lines(base);
+        _ours = Diff.lines(ours);
+        _theirs = Diff.lines(theirs);
+        _inOurs = new Diff(_base, _ours).matches();
+        _inTheirs = new Diff(_base, _theirs).matches();
+        _out = out;
+    }
+
+    /** Write to OUT the merge of the changes from BASE to OURS and to
+     *  THEIRS, any of which may be null for an empty text. Returns true
+     *  if some change conflicted. */
+    static boolean merge(byte[] base, byte[] ours, byte[] theirs,
+                         OutputStream out) throws IOException {
+        Merge3 m = new Merge3(base, ours, theirs, out);
+        m.run();
+        return m._conflict;
+    }
+
+    /** Write the merge, alternating chunks and stable lines. */
+    private void run() throws IOException {
+        int i = 0, o = 0, t = 0;
+        while (true) {
+            int k = i;
+            while (k < _base.size() && (_inOurs[k] < 0 || _inTheirs[k] < 0)) {
+                k += 1;
+            }
+            int ko = k < _base.size() ? _inOurs[k] : _ours.size();
+            int kt = k < _base.size() ? _inTheirs[k] : _theirs.size();
+            chunk(i, k, o, ko, t, kt);
+            if (k == _base.size()) {
+                return;
+            }
+            write(_base.get(k));
+            i = k + 1;
+            o = ko + 1;
+            t = kt + 1;
+        }
+    }
+
+    /** Write the merge of base lines [I0, I1), current lines [O0, O1)
+     *  and given lines [T0, T1), a stretch with no line kept on both
+     *  sides. */
+    private void chunk(int i0, int i1, int o0, int o1, int t0, int t1)
+        throws IOException {
+        List<String> base = _base.subList(i0, i1);
+        List<String> ours = _ours.subList(o0, o1);
+        List<String> theirs = _theirs.subList(t0, t1);
+        if (ours.equals(base) || ours.equals(theirs)) {
+            write(theirs);
+        } else if (theirs.equals(base)) {
+            write(ours);
+        } else {
+            _conflict = true;
+            write(OURS_MARKER);
+            writeLines(ours);
+            write(SEPARATOR);
+            writeLines(theirs);
+            write(THEIRS_MARKER);
+        }
+    }
+
+    /** Write LINES. */
+    private void write(List<String> lines) throws IOException {
+        for (String line : lines) {
+            write(line);
+        }
+    }
+
+    /** Write LINES, ending the last with a newline if it has none, so
+     *  that a marker after them starts a line of its own. */
+    private void writeLines(List<String> lines) throws IOException {
+        write(lines);
+        if (!lines.isEmpty() && !lines.get(lines.size() - 1).endsWith("\n")) {
+            write("\n");
+        }
+    }
+
+    /** Write TEXT. */
+    private void write(String text) throws IOException {
+        _out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
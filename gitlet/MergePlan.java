@@ -0,0 +1,214 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** What merging one commit into another does to each file.
+ *
+ *  Only files changed on at least one side since the split point need
+ *  an action, so the plan is made in one pass over the two sorted lists
+ *  of changes, Tree.diff from the split point to each side. Each file
+ *  is then
+ *    taken from ours:   unchanged on the given side, or changed the same
+ *                       way on both, so nothing needs doing;
+ *    taken from theirs: changed only on the given side;
+ *    deleted:           deleted only on the given side;
+ *    in conflict:       changed differently on each side.
+ *  @author Truong Le
+ */
+class MergePlan {
+    /** Files kept as they are in the current commit. */
+    private final TreeSet<String> _ours = new TreeSet<>();
+    /** Files taken from the given commit. Key: path; Val: blob SHA. */
+    private final TreeMap<String, String> _theirs = new TreeMap<>();
+    /** Files deleted. */
+    private final TreeSet<String> _deletes = new TreeSet<>();
+    /** Files in conflict. Key: path; Val: the blob SHAs at the split
+     *  point, in the current commit and in the given commit, null where
+     *  the file is absent. */
+    private final TreeMap<String, String[]> _conflicts = new TreeMap<>();
+
+    /** The plan for merging GIVEN into CURRENT, whose split point is
+     *  SPLIT. */
+    MergePlan(Commit split, Commit current, Commit given) {
+        Iterator<Map.Entry<String, String[]>> ours =
+            Tree.diff(split.getTreeSHA(), current.getTreeSHA())
+                .entrySet().iterator();
+        Iterator<Map.Entry<String, String[]>> theirs =
+            Tree.diff(split.getTreeSHA(), given.getTreeSHA())
+                .entrySet().iterator();
+        Map.Entry<String, String[]> o = ours.hasNext() ? ours.next() : null;
+        Map.Entry<String, String[]> t = theirs.hasNext() ? theirs.next() : null;
+        while (o != null || t != null) {
+            int cmp = o == null ? 1 : t == null ? -1
+                : o.getKey().compareTo(t.getKey());
+            if (cmp < 0) {
+                plan(o.getKey(), o.getValue()[0], o.getValue()[1],
+                     o.getValue()[0]);
+                o = ours.hasNext() ? ours.next() : null;
+            } else if (cmp > 0) {
+                plan(t.getKey(), t.getValue()[0], t.getValue()[0],
+                     t.getValue()[1]);
+                t = theirs.hasNext() ? theirs.next() : null;
+            } else {
+                plan(o.getKey(), o.getValue()[0], o.getValue()[1],
+                     t.getValue()[1]);
+                o = ours.hasNext() ? ours.next() : null;
+                t = theirs.hasNext() ? theirs.next() : null;
+            }
+        }
+    }
+
+    /** Plan file PATH, whose blob SHAs are SPLIT at the split point,
+     *  CURR in the current commit and GIVEN in the given one, null where
+     *  it is absent. */
+    private void plan(String path, String split, String curr, String given) {
+        if (Objects.equals(curr, given) || Objects.equals(given, split)) {
+            _ours.add(path);
+        } else if (Objects.equals(curr, split)) {
+            if (given == null) {
+                _deletes.add(path);
+            } else {
+                _theirs.put(path, given);
+            }
+        } else {
+            _conflicts.put(path, new String[] {split, curr, given});
+        }
+    }
+
+    /** Return the files kept from the current commit. */
+    TreeSet<String> ours() {
+        return _ours;
+    }
+
+    /** Return the files taken from the given commit. Key: path; Val:
+     *  blob SHA. */
+    TreeMap<String, String> theirs() {
+        return _theirs;
+    }
+
+    /** Return the files deleted. */
+    TreeSet<String> deletes() {
+        return _deletes;
+    }
+
+    /** Return the files in conflict. Key: path; Val: the blob SHAs at the
+     *  split point, in the current commit and in the given commit. */
+    TreeMap<String, String[]> conflicts() {
+        return _conflicts;
+    }
+
+    /** Carry out this plan on the working tree and STAGE: deleted files
+     *  are removed, files taken from the given commit are written in
+     *  parallel and staged by their known SHAs, and files in conflict are
+     *  merged and then hashed together. Returns true if some file is left
+     *  with conflicts. */
+    boolean execute(Stage stage) {
+        for (String path : _deletes) {
+            stage.rm(path);
+        }
+        Materializer.materialize(_theirs);
+        stage.stageBlobs(_theirs);
+        boolean conflict = false;
+        for (Map.Entry<String, String[]> e : _conflicts.entrySet()) {
+            String[] shas = e.getValue();
+            if (writeMerged(e.getKey(), shas[0], shas[1], shas[2])) {
+                conflict = true;
+            }
+        }
+        stage.addAll(new ArrayList<>(_conflicts.keySet()));
+        return conflict;
+    }
+
+    /** Carry out this plan on the object store alone, touching neither
+     *  the working tree nor the stage. Files that merged cleanly are kept
+     *  in memory and put in MERGED, by SHA, for the caller to save once
+     *  it knows the merge will be committed; files left with conflicts
+     *  are added to CONFLICTED instead. Nothing is written. Returns the
+     *  changes to make to the current commit's tree. Key: path; Val: blob
+     *  SHA, or null to delete. */
+    HashMap<String, String> changes(Set<String> conflicted,
+                                    Map<String, byte[]> merged) {
+        HashMap<String, String> result = new HashMap<>(_theirs);
+        for (String path : _deletes) {
+            result.put(path, null);
+        }
+        for (Map.Entry<String, String[]> e : _conflicts.entrySet()) {
+            String[] shas = e.getValue();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                if (merge(shas[0], shas[1], shas[2], out)) {
+                    conflicted.add(e.getKey());
+                    continue;
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            byte[] contents = out.toByteArray();
+            String sha = Utils.sha1(contents);
+            merged.put(sha, contents);
+            result.put(e.getKey(), sha);
+        }
+        return result;
+    }
+
+    /** Write the merge of a file changed on both sides into CWD. When
+     * both sides have the file as text, their changes since the split
+     * point are merged line by line and only overlapping changes are
+     * marked as conflicts; otherwise the whole of each side is written
+     * between conflict markers, a missing side counting as empty.
+     * @param fileName name of file to write to in CWD.
+     * @param splitSHA SHA of the file at the split point, or null.
+     * @param currSHA SHA of the file in the current commit, or null.
+     * @param givSHA SHA of the file in the given commit, or null.
+     * @return true if the merge has conflicts. */
+    private static boolean writeMerged(String fileName, String splitSHA,
+                                       String currSHA, String givSHA) {
+        File file = Worktree.prepare(fileName);
+        try (OutputStream out = new BufferedOutputStream(
+                 Files.newOutputStream(file.toPath()))) {
+            return merge(splitSHA, currSHA, givSHA, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write to OUT the merge of blobs CURRSHA and GIVSHA, changed from
+     * SPLITSHA, any of which may be null, as writeMerged does. Returns
+     * true if the result has conflicts. */
+    static boolean merge(String splitSHA, String currSHA, String givSHA,
+                         OutputStream out) throws IOException {
+        byte[] curContents = GitlitController.getBlobBytesInGitDir(currSHA);
+        byte[] givContents = GitlitController.getBlobBytesInGitDir(givSHA);
+        if (curContents != null && givContents != null
+                && !Diff.isBinary(curContents)
+                && !Diff.isBinary(givContents)) {
+            return Merge3.merge(
+                GitlitController.getBlobBytesInGitDir(splitSHA),
+                curContents, givContents, out);
+        }
+        out.write(Merge3.OURS_MARKER.getBytes(StandardCharsets.UTF_8));
+        if (curContents != null) {
+            out.write(curContents);
+        }
+        out.write(Merge3.SEPARATOR.getBytes(StandardCharsets.UTF_8));
+        if (givContents != null) {
+            out.write(givContents);
+        }
+        out.write(Merge3.THEIRS_MARKER.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+}
@@ -0,0 +1,478 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import static gitlet.Utils.*;
+
+/** An inverted index over commit messages, so that find never has to
+ *  read the commits themselves.
+ *
+ *  Each commit is indexed under keys for its whole message, for each of
+ *  its tokens and for each GRAM-character substring of it (its
+ *  trigrams). A token is a maximal run of letters, digits, '-' and '_',
+ *  compared without regard to case, so a ticket ID such as "GL-1042" is
+ *  one token. A key is the first 64 bits of the SHA-1 of its kind and
+ *  text.
+ *
+ *  The index file (MESSAGES_FILE) is the header "MIDX" and a version
+ *  int, the number of commits and their 20-byte SHAs in the order they
+ *  were indexed, then for each key the sorted positions (ints) in that
+ *  list of the commits it covers, then the keys in increasing order,
+ *  each with the offset of its positions, followed by the end offset of
+ *  the last key's positions. It ends with the offset of the keys and
+ *  their number. The file is read as a MappedFile, and each key is found
+ *  by binary search.
+ *
+ *  Each commit appends its SHA and message to MESSAGES_LOG, which find
+ *  searches directly. Once the log is longer than LOG_LIMIT bytes the
+ *  commit that grew it folds it into the index (the limit may be set
+ *  with the gitlet.messageLog property); since new commits only add
+ *  positions after the existing ones, the old positions are copied as
+ *  they are. gc, which deletes commits, rebuilds the index from all
+ *  commits, as do init and migrate. find never writes: a repository
+ *  without an index, such as one made before it existed, is searched by
+ *  reading every commit until the log outgrows LOG_LIMIT or gc runs.
+ *  @author Truong Le
+ */
+class MessageIndex {
+    /** Header of the index file, "MIDX". */
+    private static final int MAGIC = 0x4d494458;
+    /** Index format version. */
+    private static final int VERSION = 1;
+    /** Length of a binary SHA-1. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+    /** Offset of the commit SHAs. */
+    private static final int COMMITS = 12;
+    /** Size of the trailer: the offset of the keys and their number. */
+    private static final int TRAILER = 12;
+    /** Size of an entry of the key table. */
+    private static final int KEY_BYTES = 16;
+    /** Length of the substrings indexed for substring search. */
+    static final int GRAM = 3;
+    /** Default size in bytes past which MESSAGES_LOG is folded into the
+     *  index; gitlet.messageLog overrides it. */
+    static final long LOG_LIMIT = 1 << 16;
+
+    /** The mapped index, loaded on first use. */
+    private static MappedFile _idx;
+
+    /** Record that commit COMMITSHA has message MSG. */
+    static void append(String commitSHA, String msg) {
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(
+                     new FileOutputStream(Main.MESSAGES_LOG, true)))) {
+            byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+            out.writeUTF(commitSHA);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (Main.MESSAGES_LOG.length()
+                <= Long.getLong("gitlet.messageLog", LOG_LIMIT)) {
+            return;
+        } else if (load() == null) {
+            rebuild();
+        } else {
+            fold();
+        }
+    }
+
+    /** Forget the mapped index, after another process rewrote it. */
+    static synchronized void reload() {
+        _idx = null;
+    }
+
+    /** Return the mapped index, or null if there is none in the current
+     *  format. */
+    private static synchronized MappedFile load() {
+        if (_idx == null && Main.MESSAGES_FILE.isFile()) {
+            MappedFile idx = new MappedFile(Main.MESSAGES_FILE);
+            if (idx.size() >= COMMITS + TRAILER && idx.getInt(0) == MAGIC
+                    && idx.getInt(4) == VERSION) {
+                _idx = idx;
+            }
+        }
+        return _idx;
+    }
+
+    /** Write MESSAGES_FILE afresh from every commit, emptying
+     *  MESSAGES_LOG. Every file in COMMIT_DIR must be a commit. */
+    static void rebuild() {
+        List<String> shas = GitlitController.allCommitSHAs();
+        TreeMap<Long, List<Integer>> postings = new TreeMap<>();
+        for (int k = 0; k < shas.size(); k += 1) {
+            addKeys(postings, k, GitlitController
+                    .getCommitInGitDir(shas.get(k)).getMessage());
+        }
+        install(write(null, shas, postings));
+    }
+
+    /** Fold MESSAGES_LOG into MESSAGES_FILE. */
+    private static void fold() {
+        MappedFile idx = load();
+        int base = idx.getInt(8);
+        List<String> shas = new ArrayList<>();
+        TreeMap<Long, List<Integer>> postings = new TreeMap<>();
+        for (String[] entry : logged()) {
+            addKeys(postings, base + shas.size(), entry[1]);
+            shas.add(entry[0]);
+        }
+        install(write(idx, shas, postings));
+    }
+
+    /** Make TMP the index, emptying MESSAGES_LOG. */
+    private static void install(File tmp) {
+        Durable.install(tmp, Main.MESSAGES_FILE);
+        Durable.sync();
+        Main.MESSAGES_LOG.delete();
+        reload();
+    }
+
+    /** Add the keys of message MSG of the commit at position K to
+     *  POSTINGS. */
+    private static void addKeys(TreeMap<Long, List<Integer>> postings,
+                                int k, String msg) {
+        HashSet<Long> keys = new HashSet<>();
+        keys.add(key("m", msg));
+        for (String token : tokens(msg)) {
+            keys.add(key("t", token));
+        }
+        for (String gram : grams(msg)) {
+            keys.add(key("g", gram));
+        }
+        for (long key : keys) {
+            postings.computeIfAbsent(key, x -> new ArrayList<>()).add(k);
+        }
+    }
+
+    /** Return a temporary file holding the index OLD, which may be null,
+     *  with the commits SHAS added after its own. POSTINGS gives the
+     *  positions of the new commits under each key. */
+    private static File write(MappedFile old, List<String> shas,
+                              TreeMap<Long, List<Integer>> postings) {
+        int oldCount = old == null ? 0 : old.getInt(8);
+        long oldTable = old == null ? 0 : old.getLong(old.size() - TRAILER);
+        int oldKeys = old == null ? 0 : old.getInt(old.size() - 4);
+        long[] keys = new long[oldKeys + postings.size()];
+        long[] offsets = new long[keys.length + 1];
+        int n = 0;
+
+        File tmp = Durable.temp();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(oldCount + shas.size());
+            byte[] raw = new byte[SHA_BYTES];
+            for (int k = 0; k < oldCount; k += 1) {
+                old.get(COMMITS + (long) k * SHA_BYTES, raw);
+                out.write(raw);
+            }
+            for (String sha : shas) {
+                out.write(PackFile.toBytes(sha));
+            }
+            long pos = COMMITS + (long) (oldCount + shas.size()) * SHA_BYTES;
+
+            int i = 0;
+            Map.Entry<Long, List<Integer>> next = postings.pollFirstEntry();
+            while (i < oldKeys || next != null) {
+                long oldKey = i < oldKeys
+                    ? old.getLong(oldTable + (long) i * KEY_BYTES) : 0;
+                boolean fromOld = i < oldKeys
+                    && (next == null || oldKey <= next.getKey());
+                keys[n] = fromOld ? oldKey : next.getKey();
+                offsets[n] = pos;
+                n += 1;
+                if (fromOld) {
+                    long start = old.getLong(oldTable + (long) i * KEY_BYTES
+                                             + 8);
+                    long end = old.getLong(oldTable
+                                           + (long) (i + 1) * KEY_BYTES + 8);
+                    for (long p = start; p < end; p += 4) {
+                        out.writeInt(old.getInt(p));
+                    }
+                    pos += end - start;
+                    i += 1;
+                }
+                if (next != null && (!fromOld || oldKey == next.getKey())) {
+                    for (int k : next.getValue()) {
+                        out.writeInt(k);
+                    }
+                    pos += 4L * next.getValue().size();
+                    next = postings.pollFirstEntry();
+                }
+            }
+            offsets[n] = pos;
+
+            for (int k = 0; k < n; k += 1) {
+                out.writeLong(keys[k]);
+                out.writeLong(offsets[k]);
+            }
+            out.writeLong(0);
+            out.writeLong(offsets[n]);
+            out.writeLong(pos);
+            out.writeInt(n);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return tmp;
+    }
+
+    /** Return the SHA and message of each entry of MESSAGES_LOG. */
+    private static List<String[]> logged() {
+        List<String[]> result = new ArrayList<>();
+        if (!Main.MESSAGES_LOG.isFile()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 Files.newInputStream(Main.MESSAGES_LOG.toPath())))) {
+            while (true) {
+                String commitSHA;
+                try {
+                    commitSHA = in.readUTF();
+                } catch (EOFException excp) {
+                    break;
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                result.add(new String[] {
+                    commitSHA, new String(bytes, StandardCharsets.UTF_8)
+                });
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /** Return the key of TEXT of kind KIND. */
+    private static long key(String kind, String text) {
+        return Long.parseUnsignedLong(sha1(kind, "\0", text).substring(0, 16),
+                                      16);
+    }
+
+    /** Return the sorted positions of the commits in IDX under KEY. */
+    private static int[] positions(MappedFile idx, long key) {
+        long table = idx.getLong(idx.size() - TRAILER);
+        int lo = 0;
+        int hi = idx.getInt(idx.size() - 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = idx.getLong(table + (long) mid * KEY_BYTES);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                long start = idx.getLong(table + (long) mid * KEY_BYTES + 8);
+                long end = idx.getLong(table + (long) (mid + 1) * KEY_BYTES
+                                       + 8);
+                int[] result = new int[(int) ((end - start) / 4)];
+                for (int i = 0; i < result.length; i += 1) {
+                    result[i] = idx.getInt(start + 4L * i);
+                }
+                return result;
+            }
+        }
+        return new int[0];
+    }
+
+    /** Return the SHAs of the commits in IDX at the positions found
+     *  under every key of KEYS, or of all its commits if KEYS is
+     *  empty. */
+    private static TreeSet<String> lookup(MappedFile idx, Set<Long> keys) {
+        int[] found = null;
+        if (keys.isEmpty()) {
+            found = new int[idx.getInt(8)];
+            Arrays.setAll(found, i -> i);
+        }
+        for (long key : keys) {
+            int[] p = positions(idx, key);
+            found = found == null ? p : intersect(found, p);
+        }
+        TreeSet<String> result = new TreeSet<>();
+        byte[] raw = new byte[SHA_BYTES];
+        for (int k : found) {
+            idx.get(COMMITS + (long) k * SHA_BYTES, raw);
+            result.add(PackFile.toHex(raw));
+        }
+        return result;
+    }
+
+    /** Return the values in both sorted arrays A and B. */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] < b[j]) {
+                i += 1;
+            } else if (a[i] > b[j]) {
+                j += 1;
+            } else {
+                result[n] = a[i];
+                n += 1;
+                i += 1;
+                j += 1;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** The kinds of query find makes. */
+    private interface Query {
+        /** Return the keys every commit matching the query is indexed
+         *  under, all of which must be present. */
+        Set<Long> keys();
+
+        /** Return true if MSG matches the query. */
+        boolean matches(String msg);
+
+        /** Return true if every commit under all of keys() matches. */
+        boolean exact();
+    }
+
+    /** Return the commits matching Q, in order: those the index finds,
+     *  checked against their messages unless Q's keys are exact, and
+     *  those in MESSAGES_LOG. Without an index every commit is read. */
+    private static TreeSet<String> find(Query q) {
+        MappedFile idx = load();
+        TreeSet<String> result = new TreeSet<>();
+        if (idx == null) {
+            for (String sha : GitlitController.allCommitSHAs()) {
+                if (q.matches(GitlitController.getCommitInGitDir(sha)
+                              .getMessage())) {
+                    result.add(sha);
+                }
+            }
+            return result;
+        }
+        for (String sha : lookup(idx, q.keys())) {
+            if (q.exact() || q.matches(GitlitController
+                                       .getCommitInGitDir(sha).getMessage())) {
+                result.add(sha);
+            }
+        }
+        for (String[] entry : logged()) {
+            if (q.matches(entry[1])) {
+                result.add(entry[0]);
+            }
+        }
+        return result;
+    }
+
+    /** Return the lower-case tokens of TEXT. */
+    static List<String> tokens(String text) {
+        List<String> result = new ArrayList<>();
+        for (String token
+                 : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}_-]+")) {
+            if (!token.isEmpty()) {
+                result.add(token);
+            }
+        }
+        return result;
+    }
+
+    /** Return the distinct GRAM-character substrings of TEXT. */
+    static Set<String> grams(String text) {
+        HashSet<String> result = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i += 1) {
+            result.add(text.substring(i, i + GRAM));
+        }
+        return result;
+    }
+
+    /** Return the commits whose message is exactly MSG, in order. */
+    static TreeSet<String> exact(String msg) {
+        return find(new Query() {
+            @Override
+            public Set<Long> keys() {
+                return Set.of(key("m", msg));
+            }
+
+            @Override
+            public boolean matches(String m) {
+                return m.equals(msg);
+            }
+
+            @Override
+            public boolean exact() {
+                return true;
+            }
+        });
+    }
+
+    /** Return the commits whose message contains every token of QUERY,
+     *  in order. */
+    static TreeSet<String> token(String query) {
+        List<String> words = tokens(query);
+        if (words.isEmpty()) {
+            return new TreeSet<>();
+        }
+        return find(new Query() {
+            @Override
+            public Set<Long> keys() {
+                HashSet<Long> result = new HashSet<>();
+                for (String word : words) {
+                    result.add(key("t", word));
+                }
+                return result;
+            }
+
+            @Override
+            public boolean matches(String m) {
+                return tokens(m).containsAll(words);
+            }
+
+            @Override
+            public boolean exact() {
+                return true;
+            }
+        });
+    }
+
+    /** Return the commits whose message contains TEXT, in order. The
+     *  commits holding every trigram of TEXT are found in the index and
+     *  their messages checked. TEXT shorter than GRAM has no trigrams,
+     *  so then every commit message is read. */
+    static TreeSet<String> substring(String text) {
+        return find(new Query() {
+            @Override
+            public Set<Long> keys() {
+                HashSet<Long> result = new HashSet<>();
+                for (String gram : grams(text)) {
+                    result.add(key("g", gram));
+                }
+                return result;
+            }
+
+            @Override
+            public boolean matches(String m) {
+                return m.contains(text);
+            }
+
+            @Override
+            public boolean exact() {
+                return text.length() == GRAM;
+            }
+        });
+    }
+}
@@ -0,0 +1,434 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static gitlet.Utils.*;
+
+/** A pack: many objects concatenated into one file, plus a sorted index.
+ *
+ *  The pack file (pack-ID.pack) is the header "PACK", a version int and
+ *  an object count, followed by entries of one type byte, a long length
+ *  and the object's bytes.
+ *
+ *  The index file (pack-ID.idx) is the header "PIDX" and a version int,
+ *  then a 256-entry fanout table whose entry B is the number of objects
+ *  whose SHA's first byte is <= B, then the 20-byte binary SHAs in sorted
+ *  order, then one type byte per object, then one long pack offset per
+ *  object. Both files are mapped into memory as MappedFiles, in windows
+ *  with long positions so packs may exceed 2 GB, and a lookup is a
+ *  binary search over the fanout range that never opens a file.
+ *
+ *  A blob entry may instead have type BLOB_DELTA, whose bytes are the
+ *  20-byte SHA of a base blob in the same pack followed by a Delta
+ *  against it. Chains of deltas are at most MAX_DEPTH long, and
+ *  reconstructed bases are kept in a small LRU cache.
+ *  @author Truong Le
+ */
+class PackFile {
+    /** Type byte of commit objects. */
+    static final byte COMMIT = 1;
+    /** Type byte of blob objects. */
+    static final byte BLOB = 2;
+    /** Type byte of tree objects. */
+    static final byte TREE = 4;
+
+    /** Pack entry type of blobs stored as a delta against another blob. */
+    private static final byte BLOB_DELTA = 3;
+    /** Maximum length of a chain of deltas. */
+    static final int MAX_DEPTH = 10;
+    /** Total size in bytes of reconstructed objects kept in _cache. */
+    private static final long CACHE_LIMIT = 32L << 20;
+
+    /** Pack and index format version. */
+    private static final int VERSION = 1;
+    /** Length of a binary SHA-1. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+    /** Size of the pack and index headers. */
+    private static final int HEADER = 12;
+    /** Largest object read whole into a byte array. */
+    private static final long MAX_OBJECT = Integer.MAX_VALUE - 8;
+    /** Largest blob, target or base, that write stores as a delta. The
+     *  index Delta.create builds takes many times the size of its base. */
+    static final int MAX_DELTA = 1 << 20;
+    /** Size of the index header plus fanout table. */
+    private static final int FANOUT_END = 8 + 256 * 4;
+
+    /** Lower-case hex digits, as in SHAs. */
+    private static final HexFormat HEX = HexFormat.of();
+
+    /** All packs in PACK_DIR, loaded on first use. */
+    private static List<PackFile> _packs;
+    /** Recently reconstructed delta bases, least recently used first. */
+    private static final LinkedHashMap<String, byte[]> _cache =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Total size of the values in _cache. */
+    private static long _cacheSize;
+
+    /** The .pack file. */
+    private final File _packFile;
+    /** The mapped index. */
+    private final MappedFile _idx;
+    /** The mapped pack. */
+    private final MappedFile _pack;
+    /** Number of objects in this pack. */
+    private final int _count;
+
+    /** Open the pack whose index is IDXFILE. */
+    private PackFile(File idxFile) {
+        String name = idxFile.getName();
+        _packFile = join(idxFile.getParentFile(),
+                name.substring(0, name.length() - 4) + ".pack");
+        _idx = new MappedFile(idxFile);
+        _pack = new MappedFile(_packFile);
+        if (_idx.getInt(0) != 0x50494458 || _idx.getInt(4) != VERSION) {
+            throw error("Corrupt pack index: %s", name);
+        }
+        _count = _idx.getInt(FANOUT_END - 4);
+    }
+
+    /** Return all packs in PACK_DIR. */
+    static synchronized List<PackFile> all() {
+        if (_packs == null) {
+            _packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(Main.PACK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        _packs.add(new PackFile(join(Main.PACK_DIR, name)));
+                    }
+                }
+            }
+        }
+        return _packs;
+    }
+
+    /** Forget the loaded packs, after packs were added or removed. */
+    static synchronized void reload() {
+        _packs = null;
+        synchronized (_cache) {
+            _cache.clear();
+            _cacheSize = 0;
+        }
+    }
+
+    /** Return the bytes of object SHA from any pack, or null if no pack
+     *  has it. */
+    static byte[] read(String sha) {
+        for (PackFile pack : all()) {
+            int k = pack.find(sha);
+            if (k >= 0) {
+                return pack.contents(k);
+            }
+        }
+        return null;
+    }
+
+    /** Copy object SHA into file DEST straight from the pack, returning
+     *  false, without touching DEST, if no pack holds SHA whole (it is
+     *  missing or stored as a delta). */
+    static boolean copy(String sha, File dest) {
+        for (PackFile pack : all()) {
+            int k = pack.find(sha);
+            if (k >= 0) {
+                long pos = pack.offset(k);
+                if (pack._pack.get(pos) == BLOB_DELTA) {
+                    return false;
+                }
+                Compression.copy(pack._packFile, pos + 9,
+                        pack._pack.getLong(pos + 1), dest);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the uncompressed size of object SHA in the first pack that
+     *  holds it, or -1 if no pack does. */
+    static long size(String sha) {
+        for (PackFile pack : all()) {
+            int k = pack.find(sha);
+            if (k >= 0) {
+                return pack.size(k);
+            }
+        }
+        return -1;
+    }
+
+    /** Return true if some pack contains object SHA. */
+    static boolean contains(String sha) {
+        for (PackFile pack : all()) {
+            if (pack.find(sha) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the SHAs of all packed objects of type TYPE. */
+    static List<String> list(byte type) {
+        List<String> result = new ArrayList<>();
+        for (PackFile pack : all()) {
+            for (int k = 0; k < pack._count; k += 1) {
+                if (pack.type(k) == type) {
+                    result.add(pack.sha(k));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Return the index of SHA in this pack, or -1. */
+    int find(String sha) {
+        if (sha == null || sha.length() != UID_LENGTH) {
+            return -1;
+        }
+        byte[] key = toBytes(sha);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : _idx.getInt(8 + (first - 1) * 4);
+        int hi = _idx.getInt(8 + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compare the Kth SHA in the index with KEY. */
+    private int compareAt(int k, byte[] key) {
+        long pos = FANOUT_END + (long) k * SHA_BYTES;
+        for (int i = 0; i < SHA_BYTES; i += 1) {
+            int c = (_idx.get(pos + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the Kth SHA in the index as hex. */
+    String sha(int k) {
+        byte[] raw = new byte[SHA_BYTES];
+        _idx.get(FANOUT_END + (long) k * SHA_BYTES, raw);
+        return toHex(raw);
+    }
+
+    /** Return the type of the Kth object. */
+    byte type(int k) {
+        return _idx.get(FANOUT_END + (long) _count * SHA_BYTES + k);
+    }
+
+    /** Return the pack offset of the Kth object. */
+    long offset(int k) {
+        return _idx.getLong(FANOUT_END + (long) _count * (SHA_BYTES + 1)
+                            + k * 8L);
+    }
+
+    /** Return the size of the Kth object, without reading it. A delta
+     *  starts with the size of the blob it makes. */
+    long size(int k) {
+        long pos = offset(k);
+        if (_pack.get(pos) == BLOB_DELTA) {
+            return _pack.getInt(pos + 9 + SHA_BYTES);
+        }
+        return _pack.getLong(pos + 1);
+    }
+
+    /** Return the bytes of the Kth object, resolving deltas. */
+    byte[] contents(int k) {
+        long pos = offset(k);
+        long size = _pack.getLong(pos + 1);
+        if (size > MAX_OBJECT) {
+            throw error("Packed object too large to read: %s", sha(k));
+        }
+        int len = (int) size;
+        if (_pack.get(pos) != BLOB_DELTA) {
+            byte[] result = new byte[len];
+            _pack.get(pos + 9, result);
+            return result;
+        }
+        byte[] raw = new byte[SHA_BYTES];
+        _pack.get(pos + 9, raw);
+        byte[] delta = new byte[len - SHA_BYTES];
+        _pack.get(pos + 9 + SHA_BYTES, delta);
+        return Delta.apply(base(toHex(raw)), delta);
+    }
+
+    /** Return the contents of delta base SHA in this pack, from the
+     *  cache if possible. */
+    private byte[] base(String sha) {
+        synchronized (_cache) {
+            byte[] cached = _cache.get(sha);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] result = contents(find(sha));
+        synchronized (_cache) {
+            if (_cache.put(sha, result) == null) {
+                _cacheSize += result.length;
+            }
+            Iterator<byte[]> old = _cache.values().iterator();
+            while (_cacheSize > CACHE_LIMIT && old.hasNext()) {
+                _cacheSize -= old.next().length;
+                old.remove();
+            }
+        }
+        return result;
+    }
+
+    /** Return the .pack file. */
+    File packFile() {
+        return _packFile;
+    }
+
+    /** Return the .bitmap file holding this pack's Bitmaps, which may
+     *  not exist. */
+    File bitmapFile() {
+        String name = _packFile.getName();
+        return join(_packFile.getParentFile(),
+                name.substring(0, name.length() - 5) + ".bitmap");
+    }
+
+    /** Return the number of objects in this pack. */
+    int count() {
+        return _count;
+    }
+
+    /** Return the .idx file. */
+    File idxFile() {
+        String name = _packFile.getName();
+        return join(_packFile.getParentFile(),
+                name.substring(0, name.length() - 5) + ".idx");
+    }
+
+    /** Supplies the bytes of objects being packed. */
+    interface Source {
+        /** Return the bytes of object SHA. */
+        byte[] read(String sha);
+    }
+
+    /** Write a new pack into PACK_DIR holding the objects SHAS, whose
+     *  types are TYPES, reading each one in turn from SOURCE. Each object
+     *  is held in memory while it is written, so callers leave large
+     *  blobs out. A blob with an entry in BASES is stored as a delta
+     *  against that blob when both are at most MAX_DELTA bytes and this
+     *  saves space; BASES must be acyclic, with chains no longer than
+     *  MAX_DEPTH, and every base must be among SHAS. Returns the new
+     *  pack's .pack file. */
+    static File write(List<String> shas, List<Byte> types,
+                      Map<String, String> bases, Source source) {
+        int n = shas.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> shas.get(a).compareTo(shas.get(b)));
+        List<Object> sorted = new ArrayList<>();
+        for (Integer i : order) {
+            sorted.add(shas.get(i));
+        }
+        String id = sha1(sorted);
+        Main.PACK_DIR.mkdir();
+        File packFile = join(Main.PACK_DIR, "pack-" + id + ".pack");
+        File idxFile = join(Main.PACK_DIR, "pack-" + id + ".idx");
+        File packTmp = Durable.temp();
+        File idxTmp = Durable.temp();
+
+        long[] offsets = new long[n];
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(packTmp.toPath())))) {
+            out.writeInt(0x5041434b);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            long pos = HEADER;
+            for (int i = 0; i < n; i += 1) {
+                byte[] data = source.read(shas.get(i));
+                byte type = types.get(i);
+                String baseSHA = bases.get(shas.get(i));
+                byte[] base = null;
+                if (type == BLOB && baseSHA != null
+                        && data.length <= MAX_DELTA) {
+                    base = source.read(baseSHA);
+                }
+                if (base != null && base.length <= MAX_DELTA) {
+                    byte[] delta = Delta.create(base, data);
+                    if (delta.length + SHA_BYTES < data.length * 3 / 4) {
+                        ByteArrayOutputStream entry =
+                            new ByteArrayOutputStream();
+                        entry.write(toBytes(baseSHA));
+                        entry.write(delta);
+                        data = entry.toByteArray();
+                        type = BLOB_DELTA;
+                    }
+                }
+                offsets[i] = pos;
+                out.writeByte(type);
+                out.writeLong(data.length);
+                out.write(data);
+                pos += 9 + data.length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(idxTmp.toPath())))) {
+            out.writeInt(0x50494458);
+            out.writeInt(VERSION);
+            int[] fanout = new int[256];
+            for (String sha : shas) {
+                fanout[Integer.parseInt(sha.substring(0, 2), 16)] += 1;
+            }
+            int total = 0;
+            for (int b = 0; b < 256; b += 1) {
+                total += fanout[b];
+                out.writeInt(total);
+            }
+            for (Integer i : order) {
+                out.write(toBytes(shas.get(i)));
+            }
+            for (Integer i : order) {
+                out.writeByte(types.get(i));
+            }
+            for (Integer i : order) {
+                out.writeLong(offsets[i]);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durable.install(packTmp, packFile);
+        Durable.install(idxTmp, idxFile);
+        reload();
+        return packFile;
+    }
+
+    /** Return the 20 bytes of hex SHA. */
+    static byte[] toBytes(String sha) {
+        return HEX.parseHex(sha);
+    }
+
+    /** Return RAW as a hex SHA. */
+    static String toHex(byte[] raw) {
+        return HEX.formatHex(raw);
+    }
+}
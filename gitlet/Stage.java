@@ -1,33 +1,235 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Collections;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import static gitlet.Utils.*;
 
 /**
  * @author Truong Le
  */
 public class Stage implements Serializable {
+    private static final long serialVersionUID = -1187110366669193201L;
+    /** Header of the binary encoding, "GIDX". */
+    private static final int MAGIC = 0x47494458;
+    /** Version of the binary encoding. */
+    private static final int VERSION = 1;
     /** PERSISTENCE: Blobs to be added. Key: blob's name; value: blob's SHA */
     private HashMap<String, String> _stagedForAdditionBlobs;
     /** Blobs tracked to be removed.*/
     private HashSet<String> _stagedRemovalBlobs;
-    /** Blobs to be commited this time. Key: blob's name; value: blob's SHA*/
-    private HashMap<String, String> _allBlobsToBeCommited;
-    /** Head pointer of current commit. */
-    private Commit _head;
+    /** Stat cache: Key: file's name; value: its stat and blob SHA when
+     * last hashed. */
+    private HashMap<String, CachedStat> _statCache;
+    /** True if _statCache changed since the index was loaded. */
+    private transient boolean _statCacheChanged;
+    /** Head pointer of current commit. Not persisted with the index; set
+     * from the HEAD ref each time the stage is loaded. */
+    private transient Commit _head;
 
     /** State Constructor. */
     public Stage() {
         _stagedForAdditionBlobs = new HashMap<String, String>();
-        _allBlobsToBeCommited = new HashMap<String, String>();
         _stagedRemovalBlobs = new HashSet<String>();
+        _statCache = new HashMap<String, CachedStat>();
+    }
+
+    /** Timestamp granularity of the coarsest file systems we expect, in
+     * milliseconds. A file modified this close to the moment it was last
+     * stat'ed may change again without its mtime moving ("racy"). */
+    private static final long RACY_WINDOW = 2000;
+
+    /** The size, mtime and inode of a file, together with the SHA of its
+     * contents at the time the stat was taken. */
+    private static class CachedStat implements Serializable {
+        private static final long serialVersionUID = 7928648324084371664L;
+        /** File size in bytes. */
+        private long _size;
+        /** Last modification time in milliseconds. */
+        private long _mtime;
+        /** Device and inode of the file, if the platform has them. */
+        private String _inode;
+        /** When this stat was taken, in milliseconds. */
+        private long _statTime;
+        /** SHA of the file's contents. */
+        private String _sha;
+
+        /** A CachedStat of ATTRS for contents hashing to SHA. */
+        CachedStat(BasicFileAttributes attrs, String sha) {
+            this(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                 String.valueOf(attrs.fileKey()), System.currentTimeMillis(),
+                 sha);
+        }
+
+        /** A CachedStat of a file of SIZE bytes, modified at MTIME, with
+         * inode INODE, stat'ed at STATTIME and hashing to SHA. */
+        CachedStat(long size, long mtime, String inode, long statTime,
+                   String sha) {
+            _size = size;
+            _mtime = mtime;
+            _inode = inode;
+            _statTime = statTime;
+            _sha = sha;
+        }
+
+        /** Return true if ATTRS matches this stat and the stat was not
+         * taken within RACY_WINDOW of the modification. */
+        boolean matches(BasicFileAttributes attrs) {
+            return _size == attrs.size()
+                    && _mtime == attrs.lastModifiedTime().toMillis()
+                    && _inode.equals(String.valueOf(attrs.fileKey()))
+                    && _mtime + RACY_WINDOW < _statTime;
+        }
+    }
+
+    /** Return this stage in its binary encoding: the MAGIC int, a VERSION
+     * byte, then the files staged for addition (a count, then names and
+     * 20-byte SHAs), the files staged for removal (a count, then names)
+     * and the stat cache (a count, then each name, size, mtime, inode,
+     * stat time and 20-byte SHA).
+     * @return the encoded stage. */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(_stagedForAdditionBlobs.size());
+            for (Map.Entry<String, String> e
+                     : _stagedForAdditionBlobs.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeSHA(out, e.getValue());
+            }
+            out.writeInt(_stagedRemovalBlobs.size());
+            for (String fileName : _stagedRemovalBlobs) {
+                out.writeUTF(fileName);
+            }
+            out.writeInt(_statCache.size());
+            for (Map.Entry<String, CachedStat> e : _statCache.entrySet()) {
+                CachedStat stat = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(stat._size);
+                out.writeLong(stat._mtime);
+                out.writeUTF(stat._inode);
+                out.writeLong(stat._statTime);
+                writeSHA(out, stat._sha);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Return the stage encoded in BYTES, either by toBytes or, for an
+     * index written before the binary encoding, by Java serialization.
+     * @param bytes the contents of the index file. */
+    public static Stage fromBytes(byte[] bytes) {
+        if (isSerialized(bytes)) {
+            return deserialize(bytes, Stage.class);
+        }
+        Stage stage = new Stage();
+        try (DataInputStream in = decoder(bytes, MAGIC, VERSION, "index")) {
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                String fileName = in.readUTF();
+                stage._stagedForAdditionBlobs.put(fileName, readSHA(in));
+            }
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                stage._stagedRemovalBlobs.add(in.readUTF());
+            }
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                String fileName = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String inode = in.readUTF();
+                long statTime = in.readLong();
+                stage._statCache.put(fileName, new CachedStat(size, mtime,
+                        inode, statTime, readSHA(in)));
+            }
+        } catch (IOException excp) {
+            throw error("Corrupt index");
+        }
+        return stage;
+    }
+
+    /** Return the SHA of the contents of FILENAME in the CWD, rehashing
+     * only if its size, mtime or inode changed since it was last hashed.
+     * @param fileName the name of file to hash. */
+    public String hashFile(String fileName) {
+        return hashFile(fileName, false);
+    }
+
+    /** As for hashFile, but also make sure the contents of FILENAME are
+     * saved as a blob, hashing and storing them in a single pass.
+     * @param fileName the name of file to hash and save.
+     * @return the SHA of the file. */
+    public String storeFile(String fileName) {
+        return hashFile(fileName, true);
+    }
+
+    /** Return the SHA of the contents of FILENAME, saving them as a blob
+     * if STORE.
+     * @param fileName the name of file to hash.
+     * @param store true if the blob must be saved too. */
+    private String hashFile(String fileName, boolean store) {
+        CachedStat stat = stat(fileName, store);
+        record(fileName, stat);
+        return stat._sha;
+    }
+
+    /** Return the cached stat of FILENAME if it is still valid, or else
+     * hash the file (saving it as a blob if STORE) and return a new stat.
+     * Does not modify the cache, so it may run on several threads at
+     * once; use record to keep the result.
+     * @param fileName the name of file to hash.
+     * @param store true if the blob must be saved too. */
+    private CachedStat stat(String fileName, boolean store) {
+        File file = new File(fileName);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        CachedStat cached = _statCache.get(fileName);
+        if (cached != null && cached.matches(attrs) && (!store
+                || GitlitController.hasBlobInGitDir(cached._sha))) {
+            return cached;
+        }
+        String sha;
+        if (store) {
+            sha = GitlitController.saveBlobToGitDir(file);
+        } else {
+            sha = sha1(file);
+        }
+        return new CachedStat(attrs, sha);
+    }
+
+    /** Keep STAT as the cached stat of FILENAME. */
+    private void record(String fileName, CachedStat stat) {
+        if (_statCache.get(fileName) != stat) {
+            _statCache.put(fileName, stat);
+            _statCacheChanged = true;
+        }
+    }
+
+    /** Return true if hashing refreshed the stat cache, so the index
+     * should be written back even by read-only commands. */
+    public boolean statCacheChanged() {
+        return _statCacheChanged;
     }
 
 
@@ -44,6 +246,14 @@ public class Stage implements Serializable {
         return _stagedRemovalBlobs;
     }
 
+    /** Get every path staged for addition or removal.
+     * @return the staged paths. */
+    public Set<String> getStagedPaths() {
+        Set<String> result = new HashSet<>(_stagedForAdditionBlobs.keySet());
+        result.addAll(_stagedRemovalBlobs);
+        return result;
+    }
+
     /** Set the head of commit.
      * @param c Set the head of stage to Commit C*/
     public void setHead(Commit c) {
@@ -54,7 +264,6 @@ public class Stage implements Serializable {
     public void clearAllStages() {
         _stagedForAdditionBlobs.clear();
         _stagedRemovalBlobs.clear();
-        _allBlobsToBeCommited.clear();
     }
 
     /** Check if all HashSets are cleared.
@@ -79,9 +288,50 @@ public class Stage implements Serializable {
      * at the time of the command.
      * @param fileName  file's name to add to Blob files for stage. */
     public void add(String fileName) {
-        File file = new File(fileName);
+        addAll(Collections.singletonList(fileName));
+    }
 
-        String blobSHA = sha1(readContents(file));
+    /** ADD COMMAND for many files at once. The files are hashed and
+     * saved as blobs in parallel on the common ForkJoinPool; the staging
+     * area is then updated once, on this thread.
+     * @param fileNames the names of files to add. */
+    public void addAll(List<String> fileNames) {
+        List<String> shas = hashAll(fileNames, true);
+        for (int i = 0; i < fileNames.size(); i += 1) {
+            stage(fileNames.get(i), shas.get(i));
+        }
+    }
+
+    /** Stage for addition files whose contents are already stored as
+     * blobs, without hashing them again.
+     * @param blobs Key: file name; Val: SHA of its contents. */
+    public void stageBlobs(Map<String, String> blobs) {
+        for (Map.Entry<String, String> e : blobs.entrySet()) {
+            stage(e.getKey(), e.getValue());
+        }
+    }
+
+    /** Return the SHAs of the files FILENAMES, in the same order, hashing
+     * (and saving as blobs if STORE) in parallel on the common
+     * ForkJoinPool and then updating the stat cache on this thread.
+     * @param fileNames the names of files to hash.
+     * @param store true if the blobs must be saved too. */
+    private List<String> hashAll(List<String> fileNames, boolean store) {
+        List<CachedStat> stats = fileNames.parallelStream()
+                .map(fileName -> stat(fileName, store))
+                .collect(Collectors.toList());
+        List<String> shas = new ArrayList<>(fileNames.size());
+        for (int i = 0; i < fileNames.size(); i += 1) {
+            record(fileNames.get(i), stats.get(i));
+            shas.add(stats.get(i)._sha);
+        }
+        return shas;
+    }
+
+    /** Stage FILENAME, whose contents hash to BLOBSHA, for addition.
+     * @param fileName the name of file to stage.
+     * @param blobSHA the SHA of its contents. */
+    private void stage(String fileName, String blobSHA) {
         String prevSHA = _head.getBlobSHA(fileName);
 
         if (prevSHA == null) {
@@ -114,29 +364,19 @@ public class Stage implements Serializable {
      * the current commit may be untracked in the new commit as a result being
      * staged for removal by the rm command (below).
      * @param msg The commit msg.
-     * @param p1 the 1st parent (head of current branch) if exists
-     * @param p2 the 2nd parent (head of the given branch) if exists
+     * @param p1 SHA of the 1st merge parent if exists, null otherwise
+     * @param p2 SHA of the 2nd merge parent if exists, null otherwise
      * @return the Commit with the given msg param. */
-    public Commit commit(String msg, Commit p1, Commit p2) {
-        for (String fileName: _head.getBlobsPtr().keySet()) {
-            _allBlobsToBeCommited.put(fileName, _head.getBlobSHA(fileName));
-        }
-
-        for (String keyBlobFileName: _stagedForAdditionBlobs.keySet()) {
-            File f = new File(keyBlobFileName);
-            String keyBlobSHA = sha1(readContents(f));
-            _allBlobsToBeCommited.put(keyBlobFileName, keyBlobSHA);
-            GitlitController.saveBlobToGitDir(f, keyBlobSHA);
-        }
-
+    public Commit commit(String msg, String p1, String p2) {
+        HashMap<String, String> changes =
+            new HashMap<>(_stagedForAdditionBlobs);
         for (String fileName: _stagedRemovalBlobs) {
-            _allBlobsToBeCommited.remove(fileName);
+            changes.put(fileName, null);
         }
+        String treeSHA = Tree.apply(_head.getTreeSHA(), changes);
 
-        Commit latestCommit = new Commit(msg, _head, _allBlobsToBeCommited);
-        latestCommit.setMergedParent1(p1);
-        latestCommit.setMergedParent2(p2);
-
+        Commit latestCommit = new Commit(msg, _head.getCommitSHA(),
+                treeSHA, p1, p2);
 
         _head = latestCommit;
         clearAllStages();
@@ -159,7 +399,8 @@ public class Stage implements Serializable {
 
         if (headHasBlob) {
             _stagedRemovalBlobs.add(fileName);
-            restrictedDelete(fileName);
+            _statCache.remove(fileName);
+            Worktree.delete(fileName);
         }
     }
 
@@ -179,50 +420,46 @@ public class Stage implements Serializable {
      * 1) present in the working directory but neither staged for addition nor
      * tracked.
      * This includes files that have been staged for removal, but then
-     * re-created without Gitlet's knowledge. Ignore any subdirectories that
-     * may have been introduced, since Gitlet does not deal with them.
+     * re-created without Gitlet's knowledge. Files in subdirectories are
+     * listed by their paths relative to the CWD.
      */
     public void statusModifiedAndUntracked() {
-        List<String> filesInCWD = plainFilenamesIn(Main.CWD);
-        List<String> modifiedBlobs = new LinkedList<>();
-        List<String> untrackedBlobs = new LinkedList<>();
-        boolean blobInCWD, blobInStagedAdd, blobInStagedRm, blobModified;
-
-        System.out.println("=== Modifications Not Staged For Commit ===");
-        Commit c = _head;
-        for (String blob: c.getBlobsPtr().keySet()) {
-            blobInCWD = filesInCWD.contains(blob);
-            blobInStagedAdd = _stagedForAdditionBlobs.containsKey(blob);
-            blobInStagedRm = _stagedRemovalBlobs.contains(blob);
-            if (blobInCWD) {
-                blobModified = blobIsModified(blob, c.getBlobsPtr().get(blob));
-            } else {
-                blobModified = false;
+        Set<String> filesInCWD = Worktree.files();
+        HashMap<String, String> headBlobs = _head.getBlobsPtr();
+        List<String> modifiedBlobs = new ArrayList<>();
+        List<String> untrackedBlobs = new ArrayList<>();
+
+        List<String> candidates = new ArrayList<>();
+        for (String blob: headBlobs.keySet()) {
+            if (filesInCWD.contains(blob)) {
+                if (!_stagedForAdditionBlobs.containsKey(blob)) {
+                    candidates.add(blob);
+                }
+            } else if (!_stagedRemovalBlobs.contains(blob)) {
+                modifiedBlobs.add(blob + " (deleted)");
+            }
+        }
+        List<String> shas = hashAll(candidates, false);
+        for (int i = 0; i < candidates.size(); i += 1) {
+            if (!shas.get(i).equals(headBlobs.get(candidates.get(i)))) {
+                modifiedBlobs.add(candidates.get(i) + " (modified)");
             }
+        }
 
-            if (blobInCWD && blobModified  && !blobInStagedAdd) {
-                modifiedBlobs.add(blob + " (modified)");
-            } else if (!blobInCWD && !blobInStagedRm) {
-                modifiedBlobs.add(blob + " (deleted)");
+        for (String blob: filesInCWD) {
+            if (!_stagedForAdditionBlobs.containsKey(blob)
+                    && !_stagedRemovalBlobs.contains(blob)
+                    && !headBlobs.containsKey(blob)) {
+                untrackedBlobs.add(blob);
             }
         }
 
+        System.out.println("=== Modifications Not Staged For Commit ===");
         Collections.sort(modifiedBlobs);
         for (String blobName: modifiedBlobs) {
             System.out.println(blobName);
         }
-
         System.out.println("\n=== Untracked Files ===");
-        boolean blobInCurrCommit;
-        for (String blob: filesInCWD) {
-            blobInStagedAdd = _stagedForAdditionBlobs.containsKey(blob);
-            blobInStagedRm = _stagedRemovalBlobs.contains(blob);
-            blobInCurrCommit = (c.getBlobSHA(blob) != null);
-
-            if (!blobInStagedAdd && !blobInStagedRm && !blobInCurrCommit) {
-                untrackedBlobs.add(blob);
-            }
-        }
         Collections.sort(untrackedBlobs);
         for (String blobName: untrackedBlobs) {
             System.out.println(blobName);
@@ -236,11 +473,46 @@ public class Stage implements Serializable {
      * We check in the CWD and in current staged file.
      * @return True if file has been modified in CWD. */
     public boolean blobIsModified(String fileName, String fileSHA) {
-        File f = new File(fileName);
-        String currSHA = sha1(readContents(f));
+        String currSHA = hashFile(fileName);
         return !currSHA.equals(fileSHA);
     }
 
+    /** Return the files the next commit would have: the head's files
+     * with the staged additions and removals applied.
+     * @return Key: path; Val: blob SHA, in path order. */
+    public TreeMap<String, String> indexBlobs() {
+        TreeMap<String, String> result = new TreeMap<>(_head.getBlobsPtr());
+        result.putAll(_stagedForAdditionBlobs);
+        for (String fileName : _stagedRemovalBlobs) {
+            result.remove(fileName);
+        }
+        return result;
+    }
+
+    /** Return the files in indexBlobs whose working copy differs from
+     * it or is missing, hashing in parallel as status does.
+     * @return Key: path; Val: blob SHA in the index, in path order. */
+    public TreeMap<String, String> unstagedChanges() {
+        TreeMap<String, String> index = indexBlobs();
+        TreeMap<String, String> result = new TreeMap<>();
+        List<String> candidates = new ArrayList<>();
+        for (String fileName : index.keySet()) {
+            if (new File(fileName).isFile()) {
+                candidates.add(fileName);
+            } else {
+                result.put(fileName, index.get(fileName));
+            }
+        }
+        List<String> shas = hashAll(candidates, false);
+        for (int i = 0; i < candidates.size(); i += 1) {
+            String fileName = candidates.get(i);
+            if (!shas.get(i).equals(index.get(fileName))) {
+                result.put(fileName, index.get(fileName));
+            }
+        }
+        return result;
+    }
+
     /** CHECKOUT COMMANDs.
      * @param fileName name of file in HEAD commit we want to checkout. */
     public void checkout(String fileName) {
@@ -255,9 +527,8 @@ public class Stage implements Serializable {
      * @return true if the current commit is untracked. */
     public boolean commitIsUntracked() {
         HashMap<String, String> headBlobs = _head.getBlobsPtr();
-        List<String> filesInCWD = plainFilenamesIn(Main.CWD);
 
-        for (String blobName: filesInCWD) {
+        for (String blobName: Worktree.files()) {
             if (_stagedForAdditionBlobs.get(blobName) == null
                     && headBlobs.get(blobName) == null) {
                 System.out.println("There is an untracked file in the way; "
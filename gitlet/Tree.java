@@ -0,0 +1,333 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import static gitlet.Utils.*;
+
+/** A directory snapshot: names mapped to blob SHAs and to the SHAs of
+ *  subtrees. Trees are immutable and content-addressed like blobs, so
+ *  two commits that share a subdirectory share its tree object, and
+ *  comparing them can skip any subtree whose SHA is identical.
+ *
+ *  Paths passed to and returned by the static methods are relative to
+ *  the root of the working directory and separated by "/".
+ *  @author Truong Le
+ */
+class Tree implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /** Header of the binary encoding, "GTRE". */
+    private static final int MAGIC = 0x47545245;
+    /** Version of the binary encoding. */
+    private static final int VERSION = 1;
+
+    /** Files in this directory. Key: name; Val: blob SHA. */
+    private TreeMap<String, String> _blobs;
+    /** Subdirectories. Key: name; Val: tree SHA. */
+    private TreeMap<String, String> _trees;
+    /** SHA of this tree, computed once at creation. */
+    private String _treeID;
+
+    /** Total number of entries of the trees kept in CACHE. */
+    private static final int CACHE_LIMIT = 1 << 18;
+
+    /** Trees read or saved recently, by SHA, least recently used first.
+     *  Trees never change, so this is only dropped when gc may have
+     *  deleted some of them; otherwise the oldest are evicted once they
+     *  hold more than CACHE_LIMIT entries, since it lives as long as the
+     *  daemon does. */
+    private static final LinkedHashMap<String, Tree> CACHE =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Total number of entries of the trees in CACHE. */
+    private static long _cacheSize;
+
+    /** A tree with files BLOBS and subdirectories TREES. */
+    Tree(TreeMap<String, String> blobs, TreeMap<String, String> trees) {
+        _blobs = blobs;
+        _trees = trees;
+        List<Object> vals = new ArrayList<>();
+        vals.add("tree\n");
+        for (String name : blobs.keySet()) {
+            vals.add("blob " + name + "\0" + blobs.get(name) + "\n");
+        }
+        for (String name : trees.keySet()) {
+            vals.add("tree " + name + "\0" + trees.get(name) + "\n");
+        }
+        _treeID = sha1(vals);
+    }
+
+    /** A tree with files BLOBS and subdirectories TREES, whose SHA is
+     *  already known to be TREEID. */
+    private Tree(TreeMap<String, String> blobs, TreeMap<String, String> trees,
+                 String treeID) {
+        _blobs = blobs;
+        _trees = trees;
+        _treeID = treeID;
+    }
+
+    /** Return this tree in its binary encoding: the MAGIC int, a VERSION
+     *  byte, the 20-byte tree SHA, then the files and the subdirectories,
+     *  each as a count followed by names and 20-byte SHAs. */
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeSHA(out, _treeID);
+            for (TreeMap<String, String> entries
+                     : List.of(_blobs, _trees)) {
+                out.writeInt(entries.size());
+                for (Map.Entry<String, String> e : entries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    writeSHA(out, e.getValue());
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Return the tree encoded in BYTES, either by toBytes or, for trees
+     *  written before the binary encoding, by Java serialization. */
+    static Tree fromBytes(byte[] bytes) {
+        if (isSerialized(bytes)) {
+            return deserialize(bytes, Tree.class);
+        }
+        try (DataInputStream in = decoder(bytes, MAGIC, VERSION, "tree")) {
+            String treeID = readSHA(in);
+            TreeMap<String, String> blobs = readEntries(in);
+            TreeMap<String, String> trees = readEntries(in);
+            return new Tree(blobs, trees, treeID);
+        } catch (IOException excp) {
+            throw error("Corrupt tree");
+        }
+    }
+
+    /** Return the next count and names with SHAs in IN. */
+    private static TreeMap<String, String> readEntries(DataInputStream in)
+        throws IOException {
+        TreeMap<String, String> result = new TreeMap<>();
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            String name = in.readUTF();
+            result.put(name, readSHA(in));
+        }
+        return result;
+    }
+
+    /** Return the SHA of this tree. */
+    String getTreeSHA() {
+        return _treeID;
+    }
+
+    /** Return the SHAs of the files in this directory. */
+    Collection<String> blobSHAs() {
+        return _blobs.values();
+    }
+
+    /** Return the SHAs of the subdirectories of this directory. */
+    Collection<String> subtreeSHAs() {
+        return _trees.values();
+    }
+
+    /** Forget the trees read so far, after gc deleted unreachable ones,
+     *  so that save writes them again if they come back. */
+    static void reload() {
+        synchronized (CACHE) {
+            CACHE.clear();
+            _cacheSize = 0;
+        }
+    }
+
+    /** Return the cached tree SHA, or null. */
+    private static Tree cached(String sha) {
+        synchronized (CACHE) {
+            return CACHE.get(sha);
+        }
+    }
+
+    /** Cache TREE, evicting the least recently used trees past
+     *  CACHE_LIMIT. */
+    private static void cache(Tree tree) {
+        synchronized (CACHE) {
+            if (CACHE.put(tree._treeID, tree) == null) {
+                _cacheSize += tree.size();
+            }
+            Iterator<Tree> old = CACHE.values().iterator();
+            while (_cacheSize > CACHE_LIMIT && old.hasNext()) {
+                _cacheSize -= old.next().size();
+                old.remove();
+            }
+        }
+    }
+
+    /** Return the number of entries of this tree, at least 1. */
+    private int size() {
+        return Math.max(1, _blobs.size() + _trees.size());
+    }
+
+    /** Return the SHA of the empty tree, saving it if needed. */
+    static String empty() {
+        return save(new Tree(new TreeMap<>(), new TreeMap<>()));
+    }
+
+    /** Return the tree TREESHA, from the packs or TREES_DIR. */
+    static Tree read(String treeSHA) {
+        Tree result = cached(treeSHA);
+        if (result == null) {
+            byte[] packed = PackFile.read(treeSHA);
+            if (packed == null) {
+                packed = Compression.readAll(join(Main.TREES_DIR, treeSHA));
+            }
+            result = fromBytes(packed);
+            cache(result);
+        }
+        return result;
+    }
+
+    /** Save TREE unless it already exists, returning its SHA. */
+    private static String save(Tree tree) {
+        String sha = tree._treeID;
+        File f = join(Main.TREES_DIR, sha);
+        if (cached(sha) == null && !f.exists()
+                && !PackFile.contains(sha)) {
+            Compression.write(f, tree.toBytes());
+        }
+        cache(tree);
+        return sha;
+    }
+
+    /** Return the SHAs of all trees, packed or loose. */
+    static List<String> all() {
+        TreeSet<String> result = new TreeSet<>(PackFile.list(PackFile.TREE));
+        result.addAll(plainFilenamesIn(Main.TREES_DIR));
+        return new ArrayList<>(result);
+    }
+
+    /** Return the blob SHA of file PATH under tree ROOTSHA, or null. */
+    static String lookup(String rootSHA, String path) {
+        String[] parts = path.split("/");
+        Tree tree = read(rootSHA);
+        for (int i = 0; i < parts.length - 1; i += 1) {
+            String sub = tree._trees.get(parts[i]);
+            if (sub == null) {
+                return null;
+            }
+            tree = read(sub);
+        }
+        return tree._blobs.get(parts[parts.length - 1]);
+    }
+
+    /** Add every file under tree TREESHA to OUT, with PREFIX before each
+     *  path. Key: path; Val: blob SHA. */
+    static void flatten(String treeSHA, String prefix,
+                        Map<String, String> out) {
+        Tree tree = read(treeSHA);
+        for (Map.Entry<String, String> e : tree._blobs.entrySet()) {
+            out.put(prefix + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : tree._trees.entrySet()) {
+            flatten(e.getValue(), prefix + e.getKey() + "/", out);
+        }
+    }
+
+    /** Return the SHA of the tree made by applying CHANGES to tree
+     *  ROOTSHA. Key: path; Val: new blob SHA, or null to remove. Only the
+     *  trees on the changed paths are rewritten; empty directories are
+     *  dropped. */
+    static String apply(String rootSHA, Map<String, String> changes) {
+        Tree tree = read(rootSHA);
+        TreeMap<String, String> blobs = new TreeMap<>(tree._blobs);
+        TreeMap<String, String> trees = new TreeMap<>(tree._trees);
+        TreeMap<String, Map<String, String>> nested = new TreeMap<>();
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (e.getValue() == null) {
+                    blobs.remove(path);
+                } else {
+                    blobs.put(path, e.getValue());
+                }
+            } else {
+                nested.computeIfAbsent(path.substring(0, slash),
+                    k -> new HashMap<>()).put(path.substring(slash + 1),
+                                              e.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> e : nested.entrySet()) {
+            String sub = trees.get(e.getKey());
+            String newSub = apply(sub == null ? empty() : sub, e.getValue());
+            if (read(newSub).isEmpty()) {
+                trees.remove(e.getKey());
+            } else {
+                trees.put(e.getKey(), newSub);
+            }
+        }
+        return save(new Tree(blobs, trees));
+    }
+
+    /** Return true if this tree has no entries. */
+    private boolean isEmpty() {
+        return _blobs.isEmpty() && _trees.isEmpty();
+    }
+
+    /** Return the files that differ between trees FROMSHA and TOSHA,
+     *  either of which may be null for "no tree". Key: path; Val: the
+     *  blob SHAs in FROMSHA and TOSHA, null where the file is absent.
+     *  Subtrees with identical SHAs are skipped without being read. */
+    static TreeMap<String, String[]> diff(String fromSHA, String toSHA) {
+        TreeMap<String, String[]> result = new TreeMap<>();
+        diff(fromSHA, toSHA, "", result);
+        return result;
+    }
+
+    /** Add the differences between trees FROMSHA and TOSHA to OUT, with
+     *  PREFIX before each path. */
+    private static void diff(String fromSHA, String toSHA, String prefix,
+                             Map<String, String[]> out) {
+        if (fromSHA != null && fromSHA.equals(toSHA)) {
+            return;
+        }
+        Tree from = fromSHA == null ? null : read(fromSHA);
+        Tree to = toSHA == null ? null : read(toSHA);
+        TreeSet<String> names = new TreeSet<>();
+        if (from != null) {
+            names.addAll(from._blobs.keySet());
+        }
+        if (to != null) {
+            names.addAll(to._blobs.keySet());
+        }
+        for (String name : names) {
+            String a = from == null ? null : from._blobs.get(name);
+            String b = to == null ? null : to._blobs.get(name);
+            if (a == null || !a.equals(b)) {
+                out.put(prefix + name, new String[] {a, b});
+            }
+        }
+        names.clear();
+        if (from != null) {
+            names.addAll(from._trees.keySet());
+        }
+        if (to != null) {
+            names.addAll(to._trees.keySet());
+        }
+        for (String name : names) {
+            diff(from == null ? null : from._trees.get(name),
+                 to == null ? null : to._trees.get(name),
+                 prefix + name + "/", out);
+        }
+    }
+}
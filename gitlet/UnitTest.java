@@ -4,6 +4,29 @@ import ucb.junit.textui;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
 /** The suite of all JUnit tests for the gitlet package.
  *  @author
  */
@@ -20,6 +43,1205 @@ public class UnitTest {
     public void placeholderTest() {
     }
 
-}
+    /** Check that A and B have the same fields. */
+    private static void assertSameCommit(Commit a, Commit b) {
+        assertEquals(a.getCommitSHA(), b.getCommitSHA());
+        assertEquals(a.getMessage(), b.getMessage());
+        assertEquals(a.getTimestamp(), b.getTimestamp());
+        assertEquals(a.getParentSHA(), b.getParentSHA());
+        assertEquals(a.getTreeSHA(), b.getTreeSHA());
+        assertEquals(a.getMergedParent1SHA(), b.getMergedParent1SHA());
+        assertEquals(a.getMergedParent2SHA(), b.getMergedParent2SHA());
+    }
+
+    @Test
+    public void commitRoundTrip() {
+        Commit initial = new Commit("initial commit", null,
+                                    Utils.sha1("tree"));
+        assertSameCommit(initial, Commit.fromBytes(initial.toBytes()));
+        Commit c = new Commit("Fix \u00e9l\u00e8ve\nsecond line",
+                              initial.getCommitSHA(), Utils.sha1("tree2"));
+        assertSameCommit(c, Commit.fromBytes(c.toBytes()));
+    }
+
+    @Test
+    public void mergeCommitRoundTrip() {
+        String head = Utils.sha1("head");
+        Commit c = new Commit("Merged other into master.", head,
+                              Utils.sha1("tree"), Utils.sha1("other"), head);
+        assertSameCommit(c, Commit.fromBytes(c.toBytes()));
+    }
+
+    @Test
+    public void legacyCommitStillReads() {
+        Commit c = new Commit("old", Utils.sha1("p"), Utils.sha1("tree"));
+        assertSameCommit(c, Commit.fromBytes(Utils.serialize(c)));
+    }
+
+    @Test
+    public void binaryCommitIsSmaller() {
+        Commit c = new Commit("message", Utils.sha1("p"), Utils.sha1("t"));
+        assertTrue(c.toBytes().length < Utils.serialize(c).length / 2);
+    }
+
+    @Test(expected = GitletException.class)
+    public void newerVersionIsRejected() {
+        byte[] bytes = new Commit("m", null, Utils.sha1("t")).toBytes();
+        bytes[4] += 1;
+        Commit.fromBytes(bytes);
+    }
+
+    @Test
+    public void treeRoundTrip() {
+        TreeMap<String, String> blobs = new TreeMap<>();
+        blobs.put("a.txt", Utils.sha1("a"));
+        blobs.put("b c.txt", Utils.sha1("b"));
+        TreeMap<String, String> trees = new TreeMap<>();
+        trees.put("sub", Utils.sha1("sub"));
+        Tree t = new Tree(blobs, trees);
+        Tree back = Tree.fromBytes(t.toBytes());
+        assertEquals(t.getTreeSHA(), back.getTreeSHA());
+        assertArrayEquals(t.toBytes(), back.toBytes());
+        Tree empty = new Tree(new TreeMap<>(), new TreeMap<>());
+        assertEquals(empty.getTreeSHA(),
+                     Tree.fromBytes(empty.toBytes()).getTreeSHA());
+    }
+
+    @Test
+    public void stageRoundTrip() {
+        Stage stage = new Stage();
+        stage.getStagedForAddition().put("a.txt", Utils.sha1("a"));
+        stage.getStagedForAddition().put("d/b.txt", Utils.sha1("b"));
+        stage.getStagedForRemoval().add("gone.txt");
+        Stage back = Stage.fromBytes(stage.toBytes());
+        assertEquals(stage.getStagedForAddition(),
+                     back.getStagedForAddition());
+        assertEquals(stage.getStagedForRemoval(),
+                     back.getStagedForRemoval());
+        assertTrue(Stage.fromBytes(new Stage().toBytes()).isClear());
+        assertEquals(stage.getStagedForAddition(),
+                     Stage.fromBytes(Utils.serialize(stage))
+                         .getStagedForAddition());
+    }
+
+    /** Return a BitSet of N bits mixing long runs of ones and zeros with
+     *  scattered bits, drawn from R. */
+    private static BitSet randomBits(Random r, int n) {
+        BitSet result = new BitSet();
+        int k = 0;
+        while (k < n) {
+            int len = 1 + r.nextInt(r.nextBoolean() ? 500 : 10);
+            if (r.nextInt(3) == 0) {
+                result.set(k, Math.min(n, k + len));
+            } else if (r.nextBoolean()) {
+                for (int i = k; i < Math.min(n, k + len); i += 1) {
+                    result.set(i, r.nextInt(4) == 0);
+                }
+            }
+            k += len;
+        }
+        return result;
+    }
+
+    @Test
+    public void ewahMatchesBitSet() {
+        Random r = new Random(24);
+        for (int trial = 0; trial < 200; trial += 1) {
+            BitSet a = randomBits(r, r.nextInt(5000));
+            BitSet b = randomBits(r, r.nextInt(5000));
+            Ewah ea = Ewah.of(a), eb = Ewah.of(b);
+            assertEquals(a, ea.toBitSet());
+            assertEquals(a.cardinality(), ea.cardinality());
+            BitSet and = (BitSet) a.clone();
+            and.and(b);
+            assertEquals(and, ea.and(eb).toBitSet());
+            BitSet or = (BitSet) a.clone();
+            or.or(b);
+            assertEquals(or, ea.or(eb).toBitSet());
+            BitSet andNot = (BitSet) a.clone();
+            andNot.andNot(b);
+            assertEquals(andNot, ea.andNot(eb).toBitSet());
+            assertEquals(andNot.cardinality(), ea.andNot(eb).cardinality());
+            BitSet each = new BitSet();
+            ea.or(eb).forEach(each::set);
+            assertEquals(or, each);
+        }
+    }
+
+    @Test
+    public void ewahRoundTrip() throws IOException {
+        BitSet bits = randomBits(new Random(25), 10000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Ewah.of(bits).write(new DataOutputStream(bytes));
+        Ewah back = Ewah.read(new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(bits, back.toBitSet());
+        assertEquals(bits, back.or(Ewah.EMPTY).toBitSet());
+    }
+
+    @Test
+    public void ewahCompressesRuns() {
+        BitSet bits = new BitSet();
+        bits.set(0, 1 << 20);
+        bits.set((1 << 21) + 3);
+        assertTrue(Ewah.of(bits).compressedWords() <= 4);
+        assertEquals((1 << 20) + 1, Ewah.of(bits).cardinality());
+    }
+
+    @Test
+    public void mappedFileReadsAcrossWindows() throws IOException {
+        File f = File.createTempFile("gitlet", ".bin");
+        f.deleteOnExit();
+        byte[] data = new byte[1000];
+        new Random(4).nextBytes(data);
+        Utils.writeContents(f, data);
+        MappedFile m = new MappedFile(f, 64, 16);
+        ByteBuffer expected = ByteBuffer.wrap(data);
+        for (int pos = 0; pos + 8 <= data.length; pos += 1) {
+            assertEquals(expected.get(pos), m.get(pos));
+            assertEquals(expected.getInt(pos), m.getInt(pos));
+            assertEquals(expected.getLong(pos), m.getLong(pos));
+        }
+        byte[] span = new byte[300];
+        m.get(50, span);
+        assertArrayEquals(Arrays.copyOfRange(data, 50, 350), span);
+        assertEquals(data.length, m.size());
+    }
+
+    @Test
+    public void mappedFileReadsPast2GB() throws IOException {
+        File f = File.createTempFile("gitlet", ".bin");
+        f.deleteOnExit();
+        long pos = (5L << 29) + 7;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(3L << 30);
+            raf.seek(pos);
+            raf.writeLong(0x0123456789abcdefL);
+            raf.seek(MappedFile.WINDOW - 3);
+            raf.writeInt(0xcafebabe);
+        }
+        try {
+            MappedFile m = new MappedFile(f);
+            assertEquals(3L << 30, m.size());
+            assertEquals(0x0123456789abcdefL, m.getLong(pos));
+            assertEquals(0xcafebabe, m.getInt(MappedFile.WINDOW - 3));
+            byte[] raw = new byte[8];
+            m.get(pos, raw);
+            assertEquals(0x0123456789abcdefL, ByteBuffer.wrap(raw).getLong());
+        } finally {
+            f.delete();
+        }
+    }
+
+    /** Check that the delta from BASE to TARGET rebuilds TARGET. */
+    private static void assertDeltaRoundTrip(byte[] base, byte[] target) {
+        assertArrayEquals(target,
+                          Delta.apply(base, Delta.create(base, target)));
+    }
+
+    /** Return the bytes of TEXT. */
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void deltaEdgeCases() {
+        byte[] text = bytes("The quick brown fox jumps over the lazy dog.\n"
+                            + "Pack my box with five dozen liquor jugs.\n");
+        assertDeltaRoundTrip(new byte[0], new byte[0]);
+        assertDeltaRoundTrip(new byte[0], text);
+        assertDeltaRoundTrip(text, new byte[0]);
+        assertDeltaRoundTrip(text, text);
+        assertDeltaRoundTrip(bytes("short"), bytes("shorter"));
+        assertDeltaRoundTrip(bytes("fifteen bytes!!"), bytes("fifteen bytes!"));
+    }
+
+    @Test
+    public void deltaInsertsAtHeadAndTail() {
+        byte[] base = new byte[4096];
+        new Random(5).nextBytes(base);
+        byte[] head = new byte[base.length + 3];
+        head[0] = 1;
+        head[1] = 2;
+        head[2] = 3;
+        System.arraycopy(base, 0, head, 3, base.length);
+        assertDeltaRoundTrip(base, head);
+        byte[] tail = Arrays.copyOf(base, base.length + 5);
+        assertDeltaRoundTrip(base, tail);
+        byte[] both = new byte[head.length + 5];
+        System.arraycopy(head, 0, both, 0, head.length);
+        assertDeltaRoundTrip(base, both);
+        assertTrue(Delta.create(base, both).length < 100);
+    }
+
+    @Test
+    public void deltaRandomEdits() {
+        Random r = new Random(6);
+        for (int trial = 0; trial < 100; trial += 1) {
+            byte[] base = new byte[r.nextInt(3000)];
+            r.nextBytes(base);
+            ByteArrayOutputStream target = new ByteArrayOutputStream();
+            int k = 0;
+            while (k < base.length) {
+                int len = Math.min(base.length - k, 1 + r.nextInt(200));
+                if (r.nextInt(4) != 0) {
+                    target.write(base, k, len);
+                }
+                if (r.nextInt(3) == 0) {
+                    byte[] extra = new byte[r.nextInt(40)];
+                    r.nextBytes(extra);
+                    target.write(extra, 0, extra.length);
+                }
+                k += len;
+            }
+            assertDeltaRoundTrip(base, target.toByteArray());
+        }
+    }
+
+    /** Return a new temporary file, deleted when the JVM exits. */
+    private static File tempFile() throws IOException {
+        File f = File.createTempFile("gitlet", ".obj");
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void codecHeaderRoundTrip() throws IOException {
+        byte[] data = bytes("hello hello hello hello hello\n".repeat(50));
+        String old = System.getProperty("gitlet.compression");
+        try {
+            for (String name : new String[] {"none", "deflate", "deflate-1"}) {
+                System.setProperty("gitlet.compression", name);
+                File f = tempFile();
+                try (OutputStream out = Compression.newOutputStream(f)) {
+                    out.write(data);
+                }
+                byte[] raw = Utils.readContents(f);
+                assertEquals('G', raw[0]);
+                assertEquals('L', raw[1]);
+                assertEquals('O', raw[2]);
+                assertEquals(Compression.current().id(), raw[3]);
+                assertArrayEquals(data, Compression.readAll(f));
+                assertEquals(name.equals("none") ? 4 : -1,
+                             Compression.rawOffset(f));
+            }
+        } finally {
+            if (old == null) {
+                System.clearProperty("gitlet.compression");
+            } else {
+                System.setProperty("gitlet.compression", old);
+            }
+        }
+    }
+
+    @Test
+    public void legacyObjectsReadRaw() throws IOException {
+        for (byte[] data : new byte[][] {bytes("GL"), bytes("GLX!rest"),
+                                         new byte[0], bytes("plain text")}) {
+            File f = tempFile();
+            Utils.writeContents(f, data);
+            assertArrayEquals(data, Compression.readAll(f));
+            assertEquals(0, Compression.rawOffset(f));
+        }
+    }
+
+    @Test(expected = GitletException.class)
+    public void unknownCodecIdIsRejected() throws IOException {
+        File f = tempFile();
+        Utils.writeContents(f, new byte[] {'G', 'L', 'O', 99, 1, 2, 3});
+        Compression.readAll(f);
+    }
+
+    @Test
+    public void copyTakesARange() throws IOException {
+        File src = tempFile(), dest = tempFile();
+        Utils.writeContents(src, bytes("0123456789"));
+        Compression.copy(src, 3, 4, dest);
+        assertArrayEquals(bytes("3456"), Utils.readContents(dest));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void copyPastEndFails() throws IOException {
+        File src = tempFile(), dest = tempFile();
+        Utils.writeContents(src, bytes("0123456789"));
+        Compression.copy(src, 8, 10, dest);
+    }
+
+    /** Streaming sha1 of a file agrees with sha1 of its bytes around the
+     *  buffer size, copies exactly what it hashes, and skips a prefix. */
+    @Test
+    public void streamingSha1MatchesInMemory() throws IOException {
+        Random r = new Random(3);
+        int buf = Utils.STREAM_BUFFER;
+        for (int size : new int[] {0, 1, buf - 1, buf, buf + 1,
+                                   3 * buf + 7}) {
+            byte[] data = new byte[size];
+            r.nextBytes(data);
+            File f = tempFile();
+            Utils.writeContents(f, data);
+            assertEquals(Utils.sha1(data), Utils.sha1(f));
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            assertEquals(Utils.sha1(data), Utils.sha1(f, copy));
+            assertArrayEquals(data, copy.toByteArray());
+            int skip = size / 3;
+            copy.reset();
+            byte[] rest = Arrays.copyOfRange(data, skip, size);
+            assertEquals(Utils.sha1(rest), Utils.sha1(f, skip, copy));
+            assertArrayEquals(rest, copy.toByteArray());
+        }
+    }
+
+    /** Run in a directory, print Worktree.sortedFiles, one per line. */
+    public static class WorktreeProbe {
+        /** Print the working files. */
+        public static void main(String... ignored) {
+            for (String path : Worktree.sortedFiles()) {
+                System.out.println(path);
+            }
+        }
+    }
+
+    /** The parallel scan lists the same files as a sequential walk,
+     *  leaving out .gitlet but not a subdirectory that happens to share
+     *  its name, and skipping empty directories. */
+    @Test
+    public void worktreeScanMatchesSequentialWalk()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        Random r = new Random(9);
+        for (int k = 0; k < 300; k += 1) {
+            File f = new File(dir, "d" + r.nextInt(6) + "/e" + r.nextInt(4)
+                              + "/f" + k + ".txt");
+            if (k % 3 == 0) {
+                f = new File(dir, "top" + k + ".txt");
+            }
+            f.getParentFile().mkdirs();
+            Utils.writeContents(f, bytes(k + "\n"));
+        }
+        new File(dir, "empty/dir").mkdirs();
+        new File(dir, ".gitlet/commits").mkdirs();
+        Utils.writeContents(new File(dir, ".gitlet/HEAD"), bytes("master"));
+        Utils.writeContents(new File(dir, ".gitlet/commits/c"), bytes("c"));
+        new File(dir, "d0/.gitlet").mkdirs();
+        Utils.writeContents(new File(dir, "d0/.gitlet/kept"), bytes("k"));
 
+        List<String> expected = new ArrayList<>();
+        Path root = dir.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                String rel = root.relativize(p).toString()
+                    .replace(File.separatorChar, '/');
+                if (Files.isRegularFile(p) && !rel.startsWith(".gitlet/")) {
+                    expected.add(rel);
+                }
+            }
+        }
+        expected.sort(null);
+        assertTrue(expected.contains("d0/.gitlet/kept"));
+        String listed = run(dir, "gitlet.UnitTest$WorktreeProbe",
+                            List.of())._out;
+        assertEquals(String.join("\n", expected) + "\n", listed);
+    }
+
+    /** Switching branches writes only the files that differ between the
+     *  two commits and deletes those the target lacks; the rest are not
+     *  touched, as their unchanged modification times show. */
+    @Test
+    public void checkoutTouchesOnlyChangedFiles()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        List<String> none = List.of();
+        run(dir, "gitlet.Main", none, "init");
+        List<String> names = new ArrayList<>();
+        for (int k = 0; k < 20; k += 1) {
+            names.add((k % 2 == 0 ? "" : "sub/") + "f" + k + ".txt");
+            File f = new File(dir, names.get(k));
+            f.getParentFile().mkdirs();
+            Utils.writeContents(f, bytes(k + "\n"));
+        }
+        List<String> add = new ArrayList<>(List.of("add"));
+        add.addAll(names);
+        run(dir, "gitlet.Main", none, add.toArray(new String[0]));
+        run(dir, "gitlet.Main", none, "commit", "twenty");
+        run(dir, "gitlet.Main", none, "branch", "other");
+        Utils.writeContents(new File(dir, "f0.txt"), bytes("changed\n"));
+        Utils.writeContents(new File(dir, "new.txt"), bytes("new\n"));
+        run(dir, "gitlet.Main", none, "add", "f0.txt", "new.txt");
+        run(dir, "gitlet.Main", none, "rm", "sub/f1.txt");
+        run(dir, "gitlet.Main", none, "commit", "changes");
 
+        long old = System.currentTimeMillis() - 3600000;
+        for (String name : names) {
+            File f = new File(dir, name);
+            if (f.exists()) {
+                Files.setLastModifiedTime(f.toPath(), FileTime.fromMillis(old));
+            }
+        }
+        assertEquals(0, run(dir, "gitlet.Main", none,
+                            "checkout", "other")._status);
+        assertArrayEquals(bytes("0\n"),
+                          Utils.readContents(new File(dir, "f0.txt")));
+        assertArrayEquals(bytes("1\n"),
+                          Utils.readContents(new File(dir, "sub/f1.txt")));
+        assertFalse(new File(dir, "new.txt").exists());
+        for (String name : names.subList(2, names.size())) {
+            assertEquals(old, new File(dir, name).lastModified());
+        }
+        assertTrue(new File(dir, "f0.txt").lastModified() > old);
+    }
+
+    /** A checkout that would overwrite an untracked file is refused and
+     *  changes nothing; one that stays clear of untracked files, or
+     *  overwrites a file staged for addition, goes ahead. */
+    @Test
+    public void checkoutBlockedByUntrackedFile()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        List<String> none = List.of();
+        run(dir, "gitlet.Main", none, "init");
+        run(dir, "gitlet.Main", none, "branch", "other");
+        Utils.writeContents(new File(dir, "a.txt"), bytes("a\n"));
+        run(dir, "gitlet.Main", none, "add", "a.txt");
+        run(dir, "gitlet.Main", none, "commit", "a");
+        run(dir, "gitlet.Main", none, "checkout", "other");
+        assertFalse(new File(dir, "a.txt").exists());
+
+        Utils.writeContents(new File(dir, "a.txt"), bytes("mine\n"));
+        assertEquals("There is an untracked file in the way; delete it, "
+                     + "or add and commit it first.\n",
+                     run(dir, "gitlet.Main", none, "checkout", "master")
+                     ._out);
+        assertArrayEquals(bytes("mine\n"),
+                          Utils.readContents(new File(dir, "a.txt")));
+        assertEquals("other", Utils.readContentsAsString(
+                         new File(dir, ".gitlet/HEAD")));
+
+        run(dir, "gitlet.Main", none, "add", "a.txt");
+        Utils.writeContents(new File(dir, "b.txt"), bytes("b\n"));
+        assertEquals("", run(dir, "gitlet.Main", none,
+                             "checkout", "master")._out);
+        assertArrayEquals(bytes("a\n"),
+                          Utils.readContents(new File(dir, "a.txt")));
+        assertArrayEquals(bytes("b\n"),
+                          Utils.readContents(new File(dir, "b.txt")));
+    }
+
+    /** Write TEXT to F, then set its modification time to MTIME. */
+    private static void rewrite(File f, String text, long mtime)
+        throws IOException {
+        Utils.writeContents(f, bytes(text));
+        Files.setLastModifiedTime(f.toPath(), FileTime.fromMillis(mtime));
+    }
+
+    /** A file rewritten with contents of the same size and the same mtime
+     *  as when it was hashed, within the racy window of that mtime, must
+     *  be hashed again. */
+    @Test
+    public void stageRehashesRacyFile() throws IOException {
+        File f = tempFile();
+        long mtime = System.currentTimeMillis();
+        rewrite(f, "one\n", mtime);
+        Stage stage = new Stage();
+        assertEquals(Utils.sha1(bytes("one\n")), stage.hashFile(f.getPath()));
+        assertTrue(stage.statCacheChanged());
+
+        rewrite(f, "two\n", mtime);
+        stage = Stage.fromBytes(stage.toBytes());
+        assertEquals(Utils.sha1(bytes("two\n")), stage.hashFile(f.getPath()));
+        assertTrue(stage.statCacheChanged());
+    }
+
+    /** A file whose stat is unchanged since it was hashed well after its
+     *  mtime is not hashed again. Here the contents are swapped behind the
+     *  stat's back, so a rehash would show. */
+    @Test
+    public void stageTrustsSettledStat() throws IOException {
+        File f = tempFile();
+        long mtime = System.currentTimeMillis() - 60000;
+        rewrite(f, "one\n", mtime);
+        Stage stage = new Stage();
+        String sha = stage.hashFile(f.getPath());
+        assertEquals(Utils.sha1(bytes("one\n")), sha);
+
+        rewrite(f, "two\n", mtime);
+        stage = Stage.fromBytes(stage.toBytes());
+        assertEquals(sha, stage.hashFile(f.getPath()));
+        assertFalse(stage.statCacheChanged());
+
+        rewrite(f, "three\n", mtime);
+        assertEquals(Utils.sha1(bytes("three\n")),
+                     stage.hashFile(f.getPath()));
+    }
+
+    /** Run in a directory holding .gitlet, apply each operation in ARGS
+     *  to files in .gitlet: "write NAME TEXT" (Durable.write), "replace
+     *  NAME TEXT", "ref NAME VALUE" (Durable.updateRef), "del NAME"
+     *  (Durable.deleteRef), "sync", "recover" (Durable.recoverRefs) and
+     *  "pending", which prints the names of the files Durable.pending
+     *  returns on a line. */
+    public static class DurableProbe {
+        /** Apply the operations in ARGS. */
+        public static void main(String... args) {
+            for (int i = 0; i < args.length;) {
+                String op = args[i];
+                File f = i + 1 < args.length
+                    ? new File(Main.GITLIT_DIR, args[i + 1]) : null;
+                switch (op) {
+                case "write":
+                    Durable.write(f, bytes(args[i + 2]));
+                    i += 3;
+                    break;
+                case "replace":
+                    Durable.replace(f, bytes(args[i + 2]));
+                    i += 3;
+                    break;
+                case "ref":
+                    Durable.updateRef(f, args[i + 2]);
+                    i += 3;
+                    break;
+                case "del":
+                    Durable.deleteRef(f);
+                    i += 2;
+                    break;
+                case "sync":
+                    Durable.sync();
+                    i += 1;
+                    break;
+                case "recover":
+                    Durable.recoverRefs();
+                    i += 1;
+                    break;
+                default:
+                    List<String> names = new ArrayList<>();
+                    for (File p : Durable.pending()) {
+                        names.add(p.getName());
+                    }
+                    System.out.println(String.join(" ", names));
+                    i += 1;
+                }
+            }
+        }
+    }
+
+    /** Run the DurableProbe operations ARGS in DIR, returning their
+     *  output. */
+    private static String durable(File dir, String... args)
+        throws IOException, InterruptedException {
+        return run(dir, "gitlet.UnitTest$DurableProbe", List.of(), args)
+            ._out;
+    }
+
+    /** Installed files wait for one sync; replace and ref updates sync
+     *  them first, and leave nothing behind in .gitlet. */
+    @Test
+    public void durableBatchesSyncs()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        File git = new File(dir, ".gitlet");
+        git.mkdir();
+        assertEquals("a b\n\nc\n\n\n",
+                     durable(dir, "write", "a", "1", "write", "b", "2",
+                             "write", "a", "3", "pending", "sync", "pending",
+                             "write", "c", "4", "pending",
+                             "replace", "d", "5", "pending",
+                             "write", "e", "6", "ref", "f", "7", "pending"));
+        assertEquals("3", Utils.readContentsAsString(new File(git, "a")));
+        assertEquals("5", Utils.readContentsAsString(new File(git, "d")));
+        assertEquals("7", Utils.readContentsAsString(new File(git, "f")));
+        List<String> names = new ArrayList<>(Arrays.asList(git.list()));
+        names.sort(null);
+        assertEquals(List.of("a", "b", "c", "d", "e", "f", "ref-journal"),
+                     names);
+    }
+
+    /** Ref updates and deletions are journaled with the old and new
+     *  values, and recoverRefs finishes only an update the journal has
+     *  and the ref lacks. */
+    @Test
+    public void durableJournalsAndRecoversRefs()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        File git = new File(dir, ".gitlet");
+        File journal = new File(git, "ref-journal");
+        File ref = new File(git, "r");
+        git.mkdir();
+        durable(dir, "ref", "r", "one", "ref", "r", "two", "del", "r");
+        assertFalse(ref.exists());
+        String[] lines = Utils.readContentsAsString(journal).split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("r - one "));
+        assertTrue(lines[1].startsWith("r one two "));
+        assertTrue(lines[2].startsWith("r two - "));
+
+        /* A command that died after journaling, before the rename. */
+        Files.writeString(journal.toPath(), "r - three 0\n",
+                          StandardOpenOption.APPEND);
+        durable(dir, "recover");
+        assertEquals("three", Utils.readContentsAsString(ref));
+        Files.writeString(journal.toPath(), "r three - 0\n",
+                          StandardOpenOption.APPEND);
+        durable(dir, "recover");
+        assertFalse(ref.exists());
+
+        /* An entry cut short, or one the ref has moved past, is left. */
+        Utils.writeContents(ref, bytes("four"));
+        Files.writeString(journal.toPath(), "r four five 0",
+                          StandardOpenOption.APPEND);
+        durable(dir, "recover");
+        assertEquals("four", Utils.readContentsAsString(ref));
+        Files.writeString(journal.toPath(), "\nr three six 0\n",
+                          StandardOpenOption.APPEND);
+        durable(dir, "recover");
+        assertEquals("four", Utils.readContentsAsString(ref));
+    }
+
+    /** Return LINES, one letter per line, as Diff lines. */
+    private static List<String> letters(String lines) {
+        List<String> result = new ArrayList<>();
+        for (char c : lines.toCharArray()) {
+            result.add(c + "\n");
+        }
+        return result;
+    }
+
+    /** Return the number of lines deleted and inserted by the diff of
+     *  A and B, checking that the lines it keeps are equal and in
+     *  order. */
+    private static int editCount(List<String> a, List<String> b) {
+        int[] matches = new Diff(a, b).matches();
+        int kept = 0, last = -1;
+        for (int i = 0; i < matches.length; i += 1) {
+            if (matches[i] >= 0) {
+                assertTrue(matches[i] > last);
+                assertEquals(a.get(i), b.get(matches[i]));
+                last = matches[i];
+                kept += 1;
+            }
+        }
+        return a.size() + b.size() - 2 * kept;
+    }
+
+    /** Return the length of a longest common subsequence of A and B. */
+    private static int lcs(List<String> a, List<String> b) {
+        int[][] len = new int[a.size() + 1][b.size() + 1];
+        for (int i = a.size() - 1; i >= 0; i -= 1) {
+            for (int j = b.size() - 1; j >= 0; j -= 1) {
+                len[i][j] = a.get(i).equals(b.get(j)) ? len[i + 1][j + 1] + 1
+                    : Math.max(len[i + 1][j], len[i][j + 1]);
+            }
+        }
+        return len[0][0];
+    }
+
+    /** Below the cost limit the middle-snake search finds a shortest edit
+     *  script: Myers' own example, and random texts against dynamic
+     *  programming. */
+    @Test
+    public void diffIsMinimal() {
+        assertEquals(5, editCount(letters("abcabba"), letters("cbabac")));
+        Random r = new Random(17);
+        for (int trial = 0; trial < 200; trial += 1) {
+            StringBuilder a = new StringBuilder(), b = new StringBuilder();
+            for (int i = r.nextInt(40); i > 0; i -= 1) {
+                a.append((char) ('a' + r.nextInt(4)));
+            }
+            for (int i = r.nextInt(40); i > 0; i -= 1) {
+                b.append((char) ('a' + r.nextInt(4)));
+            }
+            List<String> x = letters(a.toString());
+            List<String> y = letters(b.toString());
+            assertEquals(x.size() + y.size() - 2 * lcs(x, y),
+                         editCount(x, y));
+        }
+    }
+
+    /** Past the cost limit, very different texts still get a valid edit
+     *  script, if not a shortest one. */
+    @Test
+    public void diffFallsBackPastCostLimit() {
+        Random r = new Random(23);
+        List<String> a = new ArrayList<>(), b = new ArrayList<>();
+        for (int i = 0; i < 20000; i += 1) {
+            a.add(r.nextInt(50) + "\n");
+            b.add(r.nextInt(50) + "\n");
+        }
+        int edits = editCount(a, b);
+        assertTrue(edits >= a.size() + b.size() - 2 * 20000);
+        assertTrue(edits < a.size() + b.size());
+    }
+
+    /** Return what Diff.print prints for OLDTEXT and NEWTEXT. */
+    private static String printDiff(String oldText, String newText) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            Diff.print("f", bytes(oldText), bytes(newText));
+        } finally {
+            System.setOut(stdout);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void diffMarksMissingFinalNewline() {
+        String header = "diff --git a/f b/f\n--- a/f\n+++ b/f\n";
+        assertEquals(header + "@@ -1,2 +1,2 @@\n a\n-b\n"
+                     + "\\ No newline at end of file\n+b\n",
+                     printDiff("a\nb", "a\nb\n"));
+        assertEquals(header + "@@ -1,4 +1,4 @@\n-x\n a\n b\n c\n+z\n"
+                     + "\\ No newline at end of file\n",
+                     printDiff("x\na\nb\nc\n", "a\nb\nc\nz"));
+        assertEquals("", printDiff("a\nb", "a\nb"));
+    }
+
+    /** Assert that merging the changes from BASE to OURS and THEIRS gives
+     *  EXPECTED, with a conflict if CONFLICT. */
+    private static void assertMerge(String base, String ours, String theirs,
+                                    String expected, boolean conflict)
+        throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(conflict, Merge3.merge(bytes(base), bytes(ours),
+                                            bytes(theirs), out));
+        assertEquals(expected,
+                     new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void merge3TakesOneSidedAndSameChanges() throws IOException {
+        String base = "a\nb\nc\n";
+        assertMerge(base, "a\nB\nc\n", base, "a\nB\nc\n", false);
+        assertMerge(base, base, "a\nb\nC\n", "a\nb\nC\n", false);
+        assertMerge("a\nb\nc\nd\n", "a\nB\nc\nd\n", "a\nb\nc\nD\n",
+                    "a\nB\nc\nD\n", false);
+        assertMerge(base, "a\nX\nc\n", "a\nX\nc\n", "a\nX\nc\n",
+                    false);
+        assertMerge(base, "s\na\nb\nc\n", "a\nb\nc\ne\n",
+                    "s\na\nb\nc\ne\n", false);
+    }
+
+    @Test
+    public void merge3MarksConflicts() throws IOException {
+        assertMerge("a\nb\nc\n", "a\nB\nc\n", "a\nC\nc\n",
+                    "a\n<<<<<<< HEAD\nB\n=======\nC\n>>>>>>>\nc\n", true);
+        assertMerge("a\nb\nc\n", "a\nB\nB2\n", "a\nb\nC\n",
+                    "a\n<<<<<<< HEAD\nB\nB2\n=======\nb\nC\n>>>>>>>\n",
+                    true);
+        assertMerge("a\n", "s\na\n", "t\na\n",
+                    "<<<<<<< HEAD\ns\n=======\nt\n>>>>>>>\na\n", true);
+        assertMerge("a\n", "a\nx", "a\ny",
+                    "a\n<<<<<<< HEAD\nx\n=======\ny\n>>>>>>>\n", true);
+    }
+
+    /** Run in a repository, write blob ARGS[0] to each path in the rest
+     *  of ARGS with Materializer, printing the message of any exception
+     *  and of each exception it suppressed. */
+    public static class MaterializeProbe {
+        /** Write the blob in ARGS. */
+        public static void main(String... args) {
+            TreeMap<String, String> writes = new TreeMap<>();
+            for (int i = 1; i < args.length; i += 1) {
+                writes.put(args[i], args[0]);
+            }
+            try {
+                Materializer.materialize(writes);
+            } catch (IllegalArgumentException excp) {
+                System.out.println(excp.getMessage());
+                for (Throwable t : excp.getSuppressed()) {
+                    System.out.println(t.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Every write is attempted when some fail; the first failure is
+     *  thrown, noting how many there were. A missing blob stops
+     *  everything before any write. */
+    @Test
+    public void materializerReportsPartialFailures()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        run(dir, "gitlet.Main", List.of(), "init");
+        Utils.writeContents(new File(dir, "f.txt"), bytes("blob\n"));
+        run(dir, "gitlet.Main", List.of(), "add", "f.txt");
+        String blob = Utils.sha1(bytes("blob\n"));
+        new File(dir, "d1").mkdir();
+        new File(dir, "d2").mkdir();
+
+        String[] out = run(dir, "gitlet.UnitTest$MaterializeProbe",
+                           List.of("-Dgitlet.writers=4"), blob, "a.txt",
+                           "d1", "d2", "sub/b.txt")._out.split("\n");
+        assertEquals(2, out.length);
+        assertTrue(out[0].contains("d1"));
+        assertEquals("2 files could not be written", out[1]);
+        for (String name : new String[] {"a.txt", "sub/b.txt"}) {
+            assertArrayEquals(bytes("blob\n"),
+                              Utils.readContents(new File(dir, name)));
+        }
+
+        assertEquals("File does not exist in that commit.\n",
+                     run(dir, "gitlet.UnitTest$MaterializeProbe", List.of(),
+                         Utils.sha1("missing"), "c.txt", "e.txt")._out);
+        assertFalse(new File(dir, "c.txt").exists());
+        assertFalse(new File(dir, "e.txt").exists());
+    }
+
+    /** Output and exit code of a command run by gitlet. */
+    private static class Run {
+        /** What the command printed on stdout. */
+        private final String _out;
+        /** The command's exit code. */
+        private final int _status;
+
+        /** A command that printed OUT and exited with STATUS. */
+        Run(String out, int status) {
+            _out = out;
+            _status = status;
+        }
+    }
+
+    /** Return a process running class MAIN with ARGS in DIR, with the
+     *  system properties PROPS. */
+    private static ProcessBuilder java(File dir, String main,
+                                       List<String> props, String... args) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java")
+                .getPath());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.addAll(props);
+        cmd.add(main);
+        cmd.addAll(Arrays.asList(args));
+        return new ProcessBuilder(cmd).directory(dir)
+            .redirectError(ProcessBuilder.Redirect.DISCARD);
+    }
+
+    /** Run class MAIN with ARGS in DIR, with the system properties
+     *  PROPS, and wait for it. */
+    private static Run run(File dir, String main, List<String> props,
+                           String... args)
+        throws IOException, InterruptedException {
+        Process p = java(dir, main, props, args).start();
+        String out = new String(p.getInputStream().readAllBytes(),
+                                StandardCharsets.UTF_8);
+        return new Run(out, p.waitFor());
+    }
+
+    /** Run gitlet.Client with ARGS in DIR. */
+    private static Run client(File dir, String... args)
+        throws IOException, InterruptedException {
+        return run(dir, "gitlet.Client", List.of(), args);
+    }
+
+    @Test
+    public void daemonRunsClientCommands()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        assertEquals(0, java(dir, "gitlet.Main", List.of(), "init")
+                     .start().waitFor());
+        Process daemon = java(dir, "gitlet.Main",
+                              List.of("-Dgitlet.idle=30",
+                                      "-Dgitlet.compression=none"),
+                              "daemon").start();
+        try {
+            File sock = new File(dir, ".gitlet/daemon.sock");
+            for (int k = 0; k < 100 && !sock.exists(); k += 1) {
+                Thread.sleep(100);
+            }
+            assertTrue(sock.exists());
+
+            Utils.writeContents(new File(dir, "a.txt"), bytes("hello\n"));
+            Run add = client(dir, "add", "a.txt");
+            assertEquals("", add._out);
+            assertEquals(0, add._status);
+            Run commit = client(dir, "commit", "first");
+            assertEquals("", commit._out);
+            assertEquals(0, commit._status);
+            Run log = client(dir, "log");
+            assertTrue(log._out.startsWith("===\ncommit "));
+            assertTrue(log._out.contains("\nfirst\n"));
+            assertTrue(log._out.contains("\ninitial commit\n"));
+            Run rm = client(dir, "rm", "b.txt");
+            assertEquals("No reason to remove the file.\n", rm._out);
+            assertEquals(0, rm._status);
+            Run bad = client(dir, "commit");
+            assertEquals("", bad._out);
+            assertEquals(1, bad._status);
+            Run after = client(dir, "log");
+            assertEquals(log._out, after._out);
+            assertEquals(0, after._status);
+
+            /* The blob was written by the daemon, which stores objects
+             * uncompressed, not by a client run in its own JVM. */
+            File blob = new File(dir, ".gitlet/blobs/"
+                                 + Utils.sha1(bytes("hello\n")));
+            byte[] stored = Utils.readContents(blob);
+            assertEquals(Compression.NONE.id(), stored[3]);
+        } finally {
+            daemon.destroy();
+            daemon.waitFor();
+        }
+    }
+
+    @Test
+    public void packingLeavesBigBlobsLoose()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        List<String> small = List.of("-Dgitlet.bigBlob=100");
+        byte[] big = new byte[1000];
+        new Random(7).nextBytes(big);
+        Utils.writeContents(new File(dir, "big.bin"), big);
+        Utils.writeContents(new File(dir, "small.txt"), bytes("small\n"));
+        assertEquals(0, run(dir, "gitlet.Main", List.of(), "init")._status);
+        run(dir, "gitlet.Main", List.of(), "add", "big.bin", "small.txt");
+        run(dir, "gitlet.Main", List.of(), "commit", "two files");
+        run(dir, "gitlet.Main", List.of(), "repack");
+        File blobs = new File(dir, ".gitlet/blobs");
+        assertEquals(0, blobs.list().length);
+        String counts = run(dir, "gitlet.Main", List.of(),
+                            "count-reachable", "master")._out;
+
+        /* The big blob comes out of the pack, and stays loose through a
+         * second gc that finds it through the bitmaps. */
+        String bigSHA = Utils.sha1(big);
+        for (int k = 0; k < 2; k += 1) {
+            assertEquals(0, run(dir, "gitlet.Main", small, "gc")._status);
+            assertArrayEquals(new String[] {bigSHA}, blobs.list());
+            assertEquals(counts, run(dir, "gitlet.Main", small,
+                                     "count-reachable", "master")._out);
+        }
+        new File(dir, "big.bin").delete();
+        run(dir, "gitlet.Main", List.of(), "checkout", "--", "big.bin");
+        assertArrayEquals(big, Utils.readContents(new File(dir, "big.bin")));
+    }
+
+    /** Copy directory SRC and everything under it into DEST. */
+    private static void copyTree(File src, File dest) throws IOException {
+        Path from = src.toPath();
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                Path to = dest.toPath().resolve(from.relativize(p));
+                if (Files.isDirectory(p)) {
+                    Files.createDirectories(to);
+                } else {
+                    Files.copy(p, to);
+                }
+            }
+        }
+    }
+
+    /** Run in a repository, print the result of each query in ARGS on a
+     *  line of its own: "bases A B" (CommitGraph.mergeBases), "par A"
+     *  (CommitGraph.parents), "gen A", "anc A B" (CommitGraph.isAncestor)
+     *  and "rebuild", where A and B are branch names. */
+    public static class GraphProbe {
+        /** Answer the queries in ARGS. */
+        public static void main(String... args) {
+            for (int i = 0; i < args.length;) {
+                switch (args[i]) {
+                case "bases":
+                    System.out.println(String.join(" ",
+                        CommitGraph.mergeBases(
+                            GitlitController.readBranch(args[i + 1]),
+                            GitlitController.readBranch(args[i + 2]))));
+                    i += 3;
+                    break;
+                case "anc":
+                    System.out.println(CommitGraph.isAncestor(
+                        GitlitController.readBranch(args[i + 1]),
+                        GitlitController.readBranch(args[i + 2])));
+                    i += 3;
+                    break;
+                case "par":
+                    System.out.println(String.join(" ", CommitGraph.parents(
+                        GitlitController.readBranch(args[i + 1]))));
+                    i += 2;
+                    break;
+                case "gen":
+                    System.out.println(CommitGraph.generation(
+                        GitlitController.readBranch(args[i + 1])));
+                    i += 2;
+                    break;
+                default:
+                    CommitGraph.rebuild();
+                    i += 1;
+                }
+            }
+        }
+    }
+
+    /** Run the GraphProbe queries ARGS in DIR, returning their output. */
+    private static String probe(File dir, String... args)
+        throws IOException, InterruptedException {
+        return run(dir, "gitlet.UnitTest$GraphProbe", List.of(), args)._out;
+    }
+
+    /** Criss-cross merges: a, then m on master and o on other, then
+     *  other merged into master and m merged into other. Both m and o are
+     *  best common ancestors of the two merges. */
+    @Test
+    public void commitGraphCrissCross()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        String[][] script = {
+            {"init"}, {"add", "a.txt"}, {"commit", "a"}, {"branch", "a"},
+            {"branch", "other"}, {"add", "m.txt"}, {"commit", "m"},
+            {"branch", "m"}, {"checkout", "other"}, {"add", "o.txt"},
+            {"commit", "o"}, {"branch", "o"}, {"checkout", "master"},
+            {"merge", "other"}, {"checkout", "other"}, {"merge", "m"},
+        };
+        for (String[] args : script) {
+            if (args[0].equals("add")) {
+                Utils.writeContents(new File(dir, args[1]), bytes("x\n"));
+            }
+            assertEquals(0, run(dir, "gitlet.Main", List.of(), args)._status);
+        }
+        File graph = new File(dir, ".gitlet/commit-graph");
+        File log = new File(dir, ".gitlet/commit-graph.log");
+        String m = Utils.readContentsAsString(
+            new File(dir, ".gitlet/branches/m")).trim();
+        String o = Utils.readContentsAsString(
+            new File(dir, ".gitlet/branches/o")).trim();
+        String bases = (m.compareTo(o) < 0 ? m + " " + o : o + " " + m)
+            + "\n";
+        String[] queries = {
+            "bases", "master", "other", "gen", "master", "gen", "other",
+            "gen", "m", "gen", "a", "anc", "m", "master", "anc", "o", "m",
+            "anc", "a", "other",
+        };
+        String answers = bases + "4\n4\n3\n2\ntrue\nfalse\ntrue\n";
+
+        /* The merges are only in the log until the graph is rebuilt,
+         * and then they are in the graph. */
+        assertTrue(graph.isFile());
+        assertTrue(Utils.readContentsAsString(log).contains(
+            Utils.readContentsAsString(
+                new File(dir, ".gitlet/branches/other")).trim() + " "));
+        assertEquals(answers, probe(dir, queries));
+        assertEquals("", probe(dir, "rebuild"));
+        assertFalse(log.exists());
+        assertEquals(answers, probe(dir, queries));
+
+        /* Give a, at generation 2, the false parent m, at generation 3.
+         * Walks from o looking for m stop at generation 3, so never see
+         * it. */
+        byte[] raw = Utils.readContents(graph);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        int count = buf.getInt(8 + 255 * 4);
+        List<String> shas = new ArrayList<>();
+        for (int k = 0; k < count; k += 1) {
+            byte[] sha = new byte[20];
+            buf.get(8 + 256 * 4 + 20 * k, sha);
+            shas.add(PackFile.toHex(sha));
+        }
+        String a = Utils.readContentsAsString(
+            new File(dir, ".gitlet/branches/a")).trim();
+        buf.putInt(8 + 256 * 4 + 20 * count + 12 * shas.indexOf(a),
+                   shas.indexOf(m));
+        Utils.writeContents(graph, raw);
+        assertEquals(m + "\nfalse\n",
+                     probe(dir, "par", "a", "anc", "m", "o"));
+    }
+
+    /** Print the results of a few finds in DIR, run with PROPS. */
+    private static String finds(File dir, List<String> props)
+        throws IOException, InterruptedException {
+        StringBuilder result = new StringBuilder();
+        for (String[] args : new String[][] {
+                {"find", "Fix crash in parser"}, {"find", "fix"},
+                {"find", "-t", "FIX parser"}, {"find", "-t", "gl-7"},
+                {"find", "-s", "crash in"}, {"find", "-s", "GL-7"},
+                {"find", "-s", "ix"}, {"find", "-s", "commit"}}) {
+            result.append(run(dir, "gitlet.Main", props, args)._out);
+        }
+        return result.toString();
+    }
+
+    /** find gives the same answers from the index and log, from the
+     *  index after each fold, and after gc, as from reading commits. */
+    @Test
+    public void messageIndexFoldsLogAndMatchesScan()
+        throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        File index = new File(dir, ".gitlet/messages");
+        File log = new File(dir, ".gitlet/messages.log");
+        File aside = new File(dir, "messages.aside");
+        List<String> fold = List.of("-Dgitlet.messageLog=0");
+        String[] messages = {
+            "Fix crash in parser", "GL-7: parser rewrite", "fix",
+            "crash in GL-7 fixed", "docs"
+        };
+        run(dir, "gitlet.Main", List.of(), "init");
+        assertTrue(index.isFile());
+        for (int k = 0; k < messages.length; k += 1) {
+            Utils.writeContents(new File(dir, "f.txt"), bytes(k + "\n"));
+            run(dir, "gitlet.Main", List.of(), "add", "f.txt");
+            run(dir, "gitlet.Main", k < 2 ? List.of() : fold,
+                "commit", messages[k]);
+            assertEquals(k >= 2, !log.exists());
+
+            /* The index and log give what reading every commit gives. */
+            String found = finds(dir, List.of());
+            Files.move(index.toPath(), aside.toPath());
+            assertEquals(finds(dir, List.of()), found);
+            Files.move(aside.toPath(), index.toPath());
+        }
+        String found = finds(dir, List.of());
+        assertEquals(1, found.split("Found no commit").length);
+        run(dir, "gitlet.Main", List.of(), "gc");
+        assertFalse(log.exists());
+        assertEquals(found, finds(dir, List.of()));
+    }
+
+    /** testing/legacy-repo holds a repository made by the first version
+     *  of gitlet, whose whole state is the serialized .gitlet/gitlet:
+     *  commits "add a" and "add b" on master, "change a" on branch other,
+     *  other merged into master, then c.txt staged (but not yet saved as
+     *  a blob) and b.txt staged for removal. */
+    @Test
+    public void migrateConvertsLegacyRepository()
+        throws IOException, InterruptedException {
+        File src = new File("testing/legacy-repo");
+        if (!src.isDirectory()) {
+            src = new File("../testing/legacy-repo");
+        }
+        File dir = Files.createTempDirectory("gitlet").toFile();
+        copyTree(src, dir);
+        List<String> utc = List.of("-Duser.timezone=UTC");
+
+        Run refused = run(dir, "gitlet.Main", utc, "log");
+        assertTrue(refused._out.startsWith("This repository was made by"));
+        assertEquals(0, run(dir, "gitlet.Main", utc, "migrate")._status);
+        assertFalse(new File(dir, ".gitlet/gitlet").exists());
+
+        String log = run(dir, "gitlet.Main", utc, "log")._out;
+        String[] entries = log.split("===\n");
+        assertEquals(5, entries.length);
+        assertTrue(entries[1].contains("\nMerge: "));
+        assertTrue(entries[1].endsWith(
+            "Date: Sat Oct 17 03:40:29 2026 +0000\n"
+            + "Merged other into master.\n\n"));
+        assertTrue(entries[2].endsWith("\nadd b\n\n"));
+        assertTrue(entries[3].endsWith("\nadd a\n\n"));
+        assertTrue(entries[4].endsWith(
+            "Date: Thu Jan 1 08:00:00 1970 +0000\ninitial commit\n\n"));
+
+        assertEquals("=== Branches ===\n*master\nother\n\n"
+                     + "=== Staged Files ===\nc.txt\n\n"
+                     + "=== Removed Files ===\nb.txt\n\n"
+                     + "=== Modifications Not Staged For Commit ===\n\n"
+                     + "=== Untracked Files ===\n\n",
+                     run(dir, "gitlet.Main", utc, "status")._out);
+
+        assertEquals(0, run(dir, "gitlet.Main", utc, "commit", "c")._status);
+        new File(dir, "c.txt").delete();
+        run(dir, "gitlet.Main", utc, "checkout", "--", "c.txt");
+        assertArrayEquals(bytes("three\n"),
+                          Utils.readContents(new File(dir, "c.txt")));
+        String other = run(dir, "gitlet.Main", utc, "find", "change a")._out;
+        assertEquals(41, other.length());
+        assertTrue(run(dir, "gitlet.Main", utc, "log")._out
+                   .contains("\nMerge: " + other.substring(0, 7) + " "));
+    }
+
+}
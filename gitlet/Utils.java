@@ -1,14 +1,20 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
@@ -59,6 +65,52 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /* STREAMING */
+
+    /** Size of the buffer used to stream file contents. */
+    static final int STREAM_BUFFER = 1 << 16;
+
+    /** Returns the SHA-1 hash of the contents of FILE, read through a
+     *  fixed-size buffer so that memory use does not depend on the size
+     *  of FILE.  Throws IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        return sha1(file, null);
+    }
+
+    /** Returns the SHA-1 hash of the contents of FILE, also copying them
+     *  to OUT if it is not null, in a single pass through a fixed-size
+     *  buffer.  Throws IllegalArgumentException in case of problems. */
+    static String sha1(File file, OutputStream out) {
+        return sha1(file, 0, out);
+    }
+
+    /** Returns the SHA-1 hash of the contents of FILE that follow its
+     *  first SKIP bytes, also copying them to OUT if it is not null.
+     *  Throws IllegalArgumentException in case of problems. */
+    static String sha1(File file, long skip, OutputStream out) {
+        try (FileChannel in = FileChannel.open(file.toPath())) {
+            in.position(skip);
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER);
+            while (in.read(buf) >= 0) {
+                md.update(buf.array(), 0, buf.position());
+                if (out != null) {
+                    out.write(buf.array(), 0, buf.position());
+                }
+                buf.clear();
+            }
+            Formatter result = new Formatter();
+            for (byte b : md.digest()) {
+                result.format("%02x", b);
+            }
+            return result.toString();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -218,6 +270,66 @@ class Utils {
     }
 
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns true if BYTES are a Java serialization stream, as written
+     *  by serialize, rather than one of the versioned binary encodings. */
+    static boolean isSerialized(byte[] bytes) {
+        return bytes.length >= 2 && (bytes[0] & 0xff) == 0xac
+            && (bytes[1] & 0xff) == 0xed;
+    }
+
+    /** Returns a stream reading the binary encoding BYTES of a WHAT,
+     *  positioned after its header: the int MAGIC and a version byte.
+     *  Throws a GitletException if the header is not MAGIC or the version
+     *  is newer than VERSION. */
+    static DataInputStream decoder(byte[] bytes, int magic, int version,
+                                   String what) {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (in.readInt() != magic) {
+                throw error("Corrupt %s", what);
+            }
+            int v = in.readByte();
+            if (v < 1 || v > version) {
+                throw error("Unsupported %s version %d", what, v);
+            }
+        } catch (IOException excp) {
+            throw error("Corrupt %s", what);
+        }
+        return in;
+    }
+
+    /** Write hex SHA as 20 bytes to OUT. */
+    static void writeSHA(DataOutputStream out, String sha)
+        throws IOException {
+        out.write(PackFile.toBytes(sha));
+    }
+
+    /** Returns the next 20 bytes of IN as a hex SHA. */
+    static String readSHA(DataInputStream in) throws IOException {
+        byte[] raw = new byte[UID_LENGTH / 2];
+        in.readFully(raw);
+        return PackFile.toHex(raw);
+    }
+
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as
@@ -0,0 +1,104 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** The working directory, including its subdirectories. Paths are
+ *  relative to the CWD and separated by "/"; the .gitlet directory is
+ *  never part of the working tree.
+ *  @author Truong Le
+ */
+class Worktree {
+
+    /** Return the paths of all plain files in the working tree. The
+     *  directories are listed in parallel. */
+    static Set<String> files() {
+        return walk(Main.CWD.toPath(), "").collect(Collectors.toSet());
+    }
+
+    /** Return the paths of all plain files in the working tree, in
+     *  lexicographic order. */
+    static List<String> sortedFiles() {
+        List<String> result = new ArrayList<>(files());
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Return the paths of all plain files under DIR, with PREFIX
+     *  before each one. */
+    private static Stream<String> walk(Path dir, String prefix) {
+        List<Path> entries;
+        try (Stream<Path> paths = Files.list(dir)) {
+            entries = paths.collect(Collectors.toList());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return entries.parallelStream().flatMap(path -> {
+            String name = path.getFileName().toString();
+            if (Files.isDirectory(path)) {
+                if (prefix.isEmpty() && name.equals(".gitlet")) {
+                    return Stream.empty();
+                }
+                return walk(path, prefix + name + "/");
+            } else if (Files.isRegularFile(path)) {
+                return Stream.of(prefix + name);
+            }
+            return Stream.empty();
+        });
+    }
+
+    /** Return PATH relative to the CWD in "/"-separated normal form, as
+     *  used by trees and the index. */
+    static String normalize(String path) {
+        String result = Paths.get(path).normalize().toString()
+                .replace(File.separatorChar, '/');
+        if (result.startsWith("./")) {
+            result = result.substring(2);
+        }
+        return result;
+    }
+
+    /** Return the file PATH, creating its parent directories if
+     *  needed. */
+    static File prepare(String path) {
+        File file = new File(path);
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        return file;
+    }
+
+    /** Delete file PATH if it exists and is not a directory, then any
+     *  directories it leaves empty. Refuses, throwing
+     *  IllegalArgumentException, outside a Gitlet working directory or
+     *  inside .gitlet.  Returns true if PATH was deleted. */
+    static boolean delete(String path) {
+        String norm = normalize(path);
+        if (!Main.GITLIT_DIR.isDirectory() || norm.startsWith("..")
+                || norm.equals(".gitlet") || norm.startsWith(".gitlet/")) {
+            throw new IllegalArgumentException("not .gitlet working file");
+        }
+        File file = new File(norm);
+        if (file.isDirectory() || !file.delete()) {
+            return false;
+        }
+        for (File dir = file.getParentFile(); dir != null;
+             dir = dir.getParentFile()) {
+            String[] left = dir.list();
+            if (left == null || left.length > 0 || !dir.delete()) {
+                break;
+            }
+        }
+        return true;
+    }
+}